@@ -0,0 +1,124 @@
+package com.appspot.yourlittleone.benchmarks;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.form.ActivityForm;
+import com.google.api.server.spi.ObjectMapperUtil;
+import com.google.api.server.spi.config.annotationreader.ApiAnnotationIntrospector;
+import com.google.appengine.repackaged.org.codehaus.jackson.map.ObjectMapper;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the Activity methods that run on every request touching an Activity.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActivityBenchmark {
+
+    private LocalServiceTestHelper helper;
+
+    private ActivityForm activityForm;
+
+    private Activity activity;
+
+    private Activity.ResponseTransformer transformer;
+
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() {
+        helper = Fixtures.newHelper();
+        helper.setUp();
+        activityForm = Fixtures.activityForm("Toddler sing-along");
+        activity = new Activity(1L, Fixtures.ORGANIZER_USER_ID, activityForm);
+        // Attached like the list endpoints do, so that serializing doesn't load the Profile.
+        activity.setOrganizerProfile(null);
+        transformer = new Activity.ResponseTransformer();
+        // The introspector applies @ApiTransformer, as in the mapper of the endpoints.
+        objectMapper = ObjectMapperUtil.createStandardObjectMapper();
+        objectMapper.setAnnotationIntrospector(new ApiAnnotationIntrospector());
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * Runs on every create and update, including the Calendar used to derive the month.
+     */
+    @Benchmark
+    public Activity updateWithActivityForm() {
+        activity.updateWithActivityForm(activityForm);
+        return activity;
+    }
+
+    /**
+     * Runs for every confirmation e-mail.
+     */
+    @Benchmark
+    public String toStringForEmail() {
+        return activity.toString();
+    }
+
+    /**
+     * Runs for every Activity serialized to the client.
+     */
+    @Benchmark
+    public List<String> getTopics() {
+        return activity.getTopics();
+    }
+
+    /**
+     * Runs for every Activity serialized to the client.
+     */
+    @Benchmark
+    public Date getStartDate() {
+        return activity.getStartDate();
+    }
+
+    /**
+     * Runs for every Activity serialized to the client, instead of the getters above.
+     */
+    @Benchmark
+    public Map<String, Object> transformForResponse() {
+        return transformer.transformTo(activity);
+    }
+
+    /**
+     * Runs for every Activity serialized to the client, and for every query result cached.
+     */
+    @Benchmark
+    public String getWebsafeKey() {
+        return activity.getWebsafeKey();
+    }
+
+    /**
+     * Serializes the Activity the way the API does, through its transformer.
+     */
+    @Benchmark
+    public String serialize() throws IOException {
+        return objectMapper.writeValueAsString(activity);
+    }
+}
@@ -0,0 +1,61 @@
+package com.appspot.yourlittleone.benchmarks;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.form.ActivityQueryForm;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.cmd.Query;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building the datastore query of queryActivities. The query is never run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActivityQueryFormBenchmark {
+
+    private LocalServiceTestHelper helper;
+
+    @Setup
+    public void setUp() {
+        helper = Fixtures.newHelper();
+        helper.setUp();
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * A new form per invocation, as every request deserializes its own.
+     */
+    @Benchmark
+    public Query<Activity> getQuery() {
+        return Fixtures.activityQueryForm().getQuery();
+    }
+
+    /**
+     * The query cache key computed before getQuery on every queryActivities call.
+     */
+    @Benchmark
+    public String getCanonicalKey() {
+        return Fixtures.activityQueryForm().getCanonicalKey();
+    }
+}
@@ -0,0 +1,81 @@
+package com.appspot.yourlittleone.benchmarks;
+
+import com.appspot.yourlittleone.form.ActivityForm;
+import com.appspot.yourlittleone.form.ActivityQueryForm;
+import com.appspot.yourlittleone.form.ActivityQueryForm.Field;
+import com.appspot.yourlittleone.form.ActivityQueryForm.Filter;
+import com.appspot.yourlittleone.form.ActivityQueryForm.Operator;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Builds the inputs shared by the benchmarks.
+ */
+final class Fixtures {
+
+    static final String ORGANIZER_USER_ID = "123456789012345678901";
+
+    private Fixtures() {}
+
+    /**
+     * Returns a helper that installs an App Engine environment on the calling thread, which
+     * datastore keys need for the application id. Nothing is ever written to the datastore.
+     */
+    static LocalServiceTestHelper newHelper() {
+        return new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    }
+
+    /**
+     * Returns an ActivityForm as the Endpoints deserializer would build it from the client's
+     * JSON. The form has no setters, so the fields are set reflectively.
+     */
+    static ActivityForm activityForm(String name) {
+        return activityForm(name, 20, 0);
+    }
+
+    /**
+     * Returns an ActivityForm with the given capacity, split across seatShards shards.
+     */
+    static ActivityForm activityForm(String name, int maxAttendees, int seatShards) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2016, Calendar.MAY, 14, 10, 0, 0);
+        Date startDate = calendar.getTime();
+        calendar.add(Calendar.HOUR_OF_DAY, 2);
+        ActivityForm activityForm = new ActivityForm();
+        set(activityForm, "name", name);
+        set(activityForm, "description", "Songs, stories and finger games for toddlers.");
+        set(activityForm, "topics", Arrays.asList("Music", "Reading", "Toddlers"));
+        set(activityForm, "location", "Mountain View");
+        set(activityForm, "startDate", startDate);
+        set(activityForm, "endDate", calendar.getTime());
+        set(activityForm, "maxAttendees", maxAttendees);
+        set(activityForm, "seatShards", seatShards);
+        return activityForm;
+    }
+
+    /**
+     * Returns a query with an equality filter, an inequality filter and a page size, as sent
+     * by the activity search page.
+     */
+    static ActivityQueryForm activityQueryForm() {
+        return new ActivityQueryForm()
+                .filter(new Filter(Field.LOCATION, Operator.EQ, "Mountain View"))
+                .filter(new Filter(Field.TOPIC, Operator.EQ, "Music"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"))
+                .page(20, null);
+    }
+
+    private static void set(Object target, String fieldName, Object value) {
+        try {
+            java.lang.reflect.Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't set " + fieldName, e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.appspot.yourlittleone.benchmarks;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.domain.Profile;
+import com.appspot.yourlittleone.domain.Registration;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the registration lookups. They replaced the scan of the websafe keys stored on
+ * the Profile, and run on every register, unregister and isRegisteredForActivity call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RegistrationBenchmark {
+
+    private LocalServiceTestHelper helper;
+
+    private Key<Activity> activityKey;
+
+    private Key<Registration> registrationKey;
+
+    private String websafeActivityKey;
+
+    @Setup
+    public void setUp() {
+        helper = Fixtures.newHelper();
+        helper.setUp();
+        activityKey = Key.create(Key.create(Profile.class, Fixtures.ORGANIZER_USER_ID),
+                Activity.class, 1L);
+        registrationKey = Registration.key("attendee", activityKey);
+        websafeActivityKey = activityKey.getString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public Key<Registration> registrationKey() {
+        return Registration.key("attendee", activityKey);
+    }
+
+    @Benchmark
+    public Key<Activity> activityKeyOf() {
+        return Registration.activityKeyOf(registrationKey);
+    }
+
+    /**
+     * Parsing the key sent by the client, which precedes every lookup.
+     */
+    @Benchmark
+    public Key<Activity> parseWebsafeKey() {
+        return Key.create(websafeActivityKey);
+    }
+}
@@ -0,0 +1,561 @@
+package com.appspot.yourlittleone.benchmarks;
+
+import static com.appspot.yourlittleone.service.OfyService.factory;
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.domain.Registration;
+import com.appspot.yourlittleone.domain.SeatShard;
+import com.appspot.yourlittleone.spi.ActivityApi;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hammers registerForActivity and unregisterFromActivity from many threads against the local
+ * datastore, memcache and task queue stubs.
+ *
+ * Each scenario reports throughput, p50/p99 latency, transaction retries and, per exception
+ * type, the failures that reached the caller, then checks that no Activity or SeatShard was
+ * overbooked. The process exits with status 1 when a check fails, or when an operation failed
+ * with anything but a ConcurrentModificationException.
+ *
+ * Usage: java -cp target/benchmarks.jar com.appspot.yourlittleone.benchmarks.RegistrationLoadTest
+ *     [threads] [operations per thread] [seats]
+ *
+ * Run it from the benchmarks directory, so that queue.xml is found.
+ */
+public final class RegistrationLoadTest {
+
+    private static final String QUEUE_XML_PATH = "../src/main/webapp/WEB-INF/queue.xml";
+
+    /**
+     * Distinct attendees per thread, so that threads also compete for each other's seats.
+     */
+    private static final int USERS_PER_THREAD = 3;
+
+    private final int threads;
+
+    private final int operationsPerThread;
+
+    private final int seats;
+
+    private final ActivityApi api = new ActivityApi();
+
+    private RegistrationLoadTest(int threads, int operationsPerThread, int seats) {
+        this.threads = threads;
+        this.operationsPerThread = operationsPerThread;
+        this.seats = seats;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int operationsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seats = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                // High replication, for cross-group transactions; queries are consistent.
+                new LocalDatastoreServiceTestConfig()
+                        .setApplyAllHighRepJobPolicy(),
+                new LocalMemcacheServiceTestConfig(),
+                new LocalTaskQueueTestConfig().setQueueXmlPath(QUEUE_XML_PATH));
+        helper.setUp();
+        CommitGate.install();
+        CommitCounter commits = CommitCounter.install();
+        boolean passed = true;
+        try {
+            RegistrationLoadTest test = new RegistrationLoadTest(threads, operationsPerThread, seats);
+            passed &= test.run("same activity", commits, false, 0);
+            passed &= test.run("same sharded activity", commits, false, 4);
+            passed &= test.run("different activities", commits, true, 0);
+        } finally {
+            helper.tearDown();
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a single scenario.
+     *
+     * @param name The name printed in the report.
+     * @param commits Counts the datastore commits of the scenario.
+     * @param activityPerThread Whether each thread gets its own Activity.
+     * @param seatShards The number of seat shards of each Activity.
+     * @return true when no Activity was overbooked.
+     */
+    private boolean run(String name, CommitCounter commits, boolean activityPerThread,
+                        final int seatShards) throws Exception {
+        List<Key<Activity>> activityKeys = new ArrayList<>();
+        for (int i = 0; i < (activityPerThread ? threads : 1); i++) {
+            final User organizer = user("organizer" + i);
+            activityKeys.add(withSession(new Callable<Activity>() {
+                @Override
+                public Activity call() throws Exception {
+                    return api.createActivity(organizer, Fixtures.activityForm(
+                            "Load test", seats, seatShards), null);
+                }
+            }).getKey());
+        }
+        commits.reset();
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final AtomicLong conflicts = new AtomicLong();
+        // Failures by exception type.
+        final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final String websafeActivityKey =
+                    activityKeys.get(activityPerThread ? t : 0).getString();
+            final List<User> users = new ArrayList<>();
+            for (int u = 0; u < USERS_PER_THREAD; u++) {
+                users.add(user("attendee" + t + "-" + u));
+            }
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    long[] latencies = new long[operationsPerThread];
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        final User user = users.get(i % users.size());
+                        final boolean register = (i / users.size()) % 2 == 0;
+                        long operationStart = System.nanoTime();
+                        try {
+                            withSession(new Callable<Void>() {
+                                @Override
+                                public Void call() throws Exception {
+                                    if (register) {
+                                        api.registerForActivity(user, websafeActivityKey, null);
+                                    } else {
+                                        api.unregisterFromActivity(user, websafeActivityKey, null);
+                                    }
+                                    return null;
+                                }
+                            });
+                        } catch (ConflictException e) {
+                            // Full, already registered or not registered; expected under load.
+                            conflicts.incrementAndGet();
+                        } catch (Exception e) {
+                            String type = e.getClass().getSimpleName();
+                            failures.putIfAbsent(type, new AtomicLong());
+                            failures.get(type).incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - operationStart;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        long[] latencies = new long[threads * operationsPerThread];
+        try {
+            for (int t = 0; t < futures.size(); t++) {
+                System.arraycopy(futures.get(t).get(), 0, latencies, t * operationsPerThread,
+                        operationsPerThread);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+
+        System.out.printf("%s: %d threads x %d operations, %d seats, %d shards%n",
+                name, threads, operationsPerThread, seats, seatShards);
+        System.out.printf("  throughput          %.1f ops/s%n",
+                latencies.length / (elapsed / 1e9));
+        System.out.printf("  latency p50 / p99   %.2f / %.2f ms%n",
+                percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6);
+        System.out.printf("  transaction retries %d of %d commits%n",
+                commits.getFailed(), commits.getTotal());
+        System.out.printf("  conflicts           %d%n", conflicts.get());
+        boolean passed = true;
+        long failed = 0;
+        for (Map.Entry<String, AtomicLong> entry : failures.entrySet()) {
+            System.out.printf("  failures            %d %s%n", entry.getValue().get(),
+                    entry.getKey());
+            failed += entry.getValue().get();
+            if (!ConcurrentModificationException.class.getSimpleName().equals(entry.getKey())) {
+                passed = false;
+            }
+        }
+        if (failed == 0) {
+            System.out.printf("  failures            0%n");
+        }
+        if (!passed) {
+            System.out.printf("  FAILED: operations failed with unexpected exceptions%n");
+        }
+        for (Key<Activity> activityKey : activityKeys) {
+            passed &= check(activityKey);
+        }
+        return passed;
+    }
+
+    /**
+     * Checks the seats of an Activity against its Registrations.
+     *
+     * @return true when the Activity is neither overbooked nor leaking seats.
+     */
+    private boolean check(final Key<Activity> activityKey) throws Exception {
+        return withSession(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Activity activity = ofy().load().key(activityKey).now();
+                int registrations = ofy().load().type(Registration.class)
+                        .filter("activityKey", activityKey).count();
+                int seatsAvailable = activity.getSeatsAvailable();
+                boolean passed = true;
+                if (activity.isSeatSharded()) {
+                    seatsAvailable = 0;
+                    for (SeatShard shard : ofy().load().keys(
+                            SeatShard.keys(activityKey, activity.getSeatShards())).values()) {
+                        if (shard.getSeatsAvailable() < 0
+                                || shard.getSeatsAvailable() > shard.getCapacity()) {
+                            System.out.printf("  FAILED: shard %s has %d of %d seats%n",
+                                    shard.getId(), shard.getSeatsAvailable(), shard.getCapacity());
+                            passed = false;
+                        }
+                        seatsAvailable += shard.getSeatsAvailable();
+                    }
+                }
+                if (seatsAvailable < 0 || seatsAvailable + registrations != seats) {
+                    System.out.printf("  FAILED: %d seats available and %d registrations for %d"
+                            + " seats%n", seatsAvailable, registrations, seats);
+                    passed = false;
+                }
+                return passed;
+            }
+        });
+    }
+
+    /**
+     * Runs the callable in a fresh Objectify session, as the ObjectifyFilter does per request.
+     */
+    private static <T> T withSession(Callable<T> callable) throws Exception {
+        ObjectifyService.push(factory().begin());
+        try {
+            return callable.call();
+        } finally {
+            ObjectifyService.pop();
+        }
+    }
+
+    private static User user(String name) {
+        return new User(name + "@example.com", "example.com", name);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    /**
+     * Keeps datastore commits out of the window in which the local datastore has failed a
+     * transaction on contention but not rolled it back yet.
+     *
+     * In that window the local datastore fails a commit to any entity group the failed
+     * transaction read with "transaction closed", possibly after applying the writes to the
+     * commit's other entity groups. The production datastore commits atomically, so without this
+     * the seat checks would report the local datastore rather than ActivityApi. Datastore calls
+     * hold a read lock while they run, and a thread keeps it after a call failed on contention
+     * until its next rollback or commit; commits take the write lock.
+     */
+    private static final class CommitGate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        /**
+         * The datastore error of a transaction failed on contention, CONCURRENT_TRANSACTION.
+         */
+        private static final int CONCURRENT_TRANSACTION = 2;
+
+        private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Whether the current thread keeps the read lock after a call failed on contention.
+         */
+        private final ThreadLocal<Boolean> failed = new ThreadLocal<Boolean>() {
+            @Override
+            protected Boolean initialValue() {
+                return false;
+            }
+        };
+
+        private CommitGate(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+            this.delegate = delegate;
+        }
+
+        @SuppressWarnings("unchecked")
+        static void install() {
+            ApiProxy.setDelegate(new CommitGate(ApiProxy.getDelegate()));
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                                   String methodName, byte[] request) {
+            if (!"datastore_v3".equals(packageName)) {
+                return delegate.makeSyncCall(environment, packageName, methodName, request);
+            }
+            boolean commit = enter(methodName);
+            boolean contention = false;
+            try {
+                return delegate.makeSyncCall(environment, packageName, methodName, request);
+            } catch (ApiProxy.ApplicationException e) {
+                contention = e.getApplicationError() == CONCURRENT_TRANSACTION;
+                throw e;
+            } finally {
+                exit(methodName, commit, contention);
+            }
+        }
+
+        /**
+         * Waits for datastore calls to complete, so that a failed one keeps the read lock before
+         * anything else can commit.
+         */
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                                            String methodName, byte[] request,
+                                            ApiProxy.ApiConfig apiConfig) {
+            if (!"datastore_v3".equals(packageName)) {
+                return delegate.makeAsyncCall(environment, packageName, methodName, request,
+                        apiConfig);
+            }
+            boolean commit = enter(methodName);
+            boolean contention = false;
+            try {
+                Future<byte[]> future = delegate.makeAsyncCall(environment, packageName,
+                        methodName, request, apiConfig);
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Objectify reads the failure from the future.
+                    contention = e.getCause() instanceof ApiProxy.ApplicationException
+                            && ((ApiProxy.ApplicationException) e.getCause())
+                                    .getApplicationError() == CONCURRENT_TRANSACTION;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return future;
+            } finally {
+                exit(methodName, commit, contention);
+            }
+        }
+
+        /**
+         * Takes the lock for a datastore call.
+         *
+         * @return true when the call is a commit, which holds the write lock.
+         */
+        private boolean enter(String methodName) {
+            if (!"Commit".equals(methodName)) {
+                lock.readLock().lock();
+                return false;
+            }
+            // A read lock can't be upgraded, and the failed transaction is over anyway.
+            if (failed.get()) {
+                failed.set(false);
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            return true;
+        }
+
+        private void exit(String methodName, boolean commit, boolean contention) {
+            if (commit) {
+                lock.writeLock().unlock();
+                return;
+            }
+            boolean rollback = "Rollback".equals(methodName);
+            if (contention && !rollback && !failed.get()) {
+                // Keep this call's read lock until the transaction is rolled back.
+                failed.set(true);
+                return;
+            }
+            lock.readLock().unlock();
+            if (rollback && failed.get()) {
+                failed.set(false);
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord logRecord) {
+            delegate.log(environment, logRecord);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+    /**
+     * Counts datastore commits, wrapping the delegate installed by LocalServiceTestHelper.
+     *
+     * Objectify retries a transaction whose commit failed with a ConcurrentModificationException,
+     * so every failed commit is a transaction retry.
+     */
+    private static final class CommitCounter implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private CommitCounter(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+            this.delegate = delegate;
+        }
+
+        @SuppressWarnings("unchecked")
+        static CommitCounter install() {
+            CommitCounter counter = new CommitCounter(ApiProxy.getDelegate());
+            ApiProxy.setDelegate(counter);
+            return counter;
+        }
+
+        void reset() {
+            total.set(0);
+            failed.set(0);
+        }
+
+        long getTotal() {
+            return total.get();
+        }
+
+        long getFailed() {
+            return failed.get();
+        }
+
+        private boolean isCommit(String packageName, String methodName) {
+            return "datastore_v3".equals(packageName) && "Commit".equals(methodName);
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                                   String methodName, byte[] request) {
+            if (!isCommit(packageName, methodName)) {
+                return delegate.makeSyncCall(environment, packageName, methodName, request);
+            }
+            total.incrementAndGet();
+            try {
+                return delegate.makeSyncCall(environment, packageName, methodName, request);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                                            String methodName, byte[] request,
+                                            ApiProxy.ApiConfig apiConfig) {
+            Future<byte[]> future =
+                    delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+            if (!isCommit(packageName, methodName)) {
+                return future;
+            }
+            total.incrementAndGet();
+            return new CountingFuture(future);
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord logRecord) {
+            delegate.log(environment, logRecord);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+
+        /**
+         * Counts a failed commit once, however many times its result is read.
+         */
+        private final class CountingFuture implements Future<byte[]> {
+
+            private final Future<byte[]> future;
+
+            private final AtomicBoolean counted = new AtomicBoolean();
+
+            private CountingFuture(Future<byte[]> future) {
+                this.future = future;
+            }
+
+            @Override
+            public byte[] get() throws InterruptedException, ExecutionException {
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    countFailure();
+                    throw e;
+                }
+            }
+
+            @Override
+            public byte[] get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                try {
+                    return future.get(timeout, unit);
+                } catch (ExecutionException e) {
+                    countFailure();
+                    throw e;
+                }
+            }
+
+            private void countFailure() {
+                if (counted.compareAndSet(false, true)) {
+                    failed.incrementAndGet();
+                }
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return future.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return future.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return future.isDone();
+            }
+        }
+    }
+}
@@ -14,4 +14,55 @@ public final class Constants {
     public static final String API_EXPLORER_CLIENT_ID = Constant.API_EXPLORER_CLIENT_ID;
 
     public static final String MEMCACHE_ANNOUNCEMENTS_KEY = "RECENT_ANNOUNCEMENTS";
+
+    /**
+     * Memcache key of the generation counter bumped whenever an Activity is created or updated.
+     */
+    public static final String MEMCACHE_ACTIVITY_GENERATION_KEY = "ACTIVITY_GENERATION";
+
+    /**
+     * Prefix of the memcache key of the per-organizer generation counter, bumped whenever the
+     * organizer creates or updates an Activity.
+     */
+    public static final String MEMCACHE_ORGANIZER_GENERATION_KEY_PREFIX = "ORGANIZER_GENERATION:";
+
+    /**
+     * Expiration of the Objectify global cache entries, per kind, in seconds.
+     */
+    public static final int ACTIVITY_ENTITY_CACHE_EXPIRATION_SECONDS = 600;
+    public static final int PROFILE_ENTITY_CACHE_EXPIRATION_SECONDS = 3600;
+
+    /**
+     * How long the outcome of a mutation sent with an idempotency key is replayed, in seconds.
+     */
+    public static final int IDEMPOTENCY_RECORD_EXPIRATION_SECONDS = 3600;
+
+    /**
+     * System property holding the expiration of cached Activities in seconds.
+     */
+    public static final String ACTIVITY_CACHE_EXPIRATION_PROPERTY =
+            "yourlittleone.activityCache.expirationSeconds";
+
+    /**
+     * System property holding the expiration of cached userIds in seconds.
+     */
+    public static final String USER_ID_CACHE_EXPIRATION_PROPERTY =
+            "yourlittleone.userIdCache.expirationSeconds";
+
+    /**
+     * System property holding the expiration of cached query results in seconds.
+     */
+    public static final String QUERY_CACHE_EXPIRATION_PROPERTY =
+            "yourlittleone.queryCache.expirationSeconds";
+
+    /**
+     * System property switching queryActivities to keys-only queries plus a batch get.
+     */
+    public static final String KEYS_ONLY_QUERIES_PROPERTY = "yourlittleone.queryActivities.keysOnly";
+
+    /**
+     * System property switching View.SUMMARY of queryActivities to projection queries. Only
+     * set it once /admin/reindex_activities has backfilled the index of every Activity.
+     */
+    public static final String SUMMARY_PROJECTION_PROPERTY = "yourlittleone.queryActivities.summaryProjection";
 }
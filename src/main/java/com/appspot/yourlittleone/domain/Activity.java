@@ -2,25 +2,38 @@ package com.appspot.yourlittleone.domain;
 
 import static com.appspot.yourlittleone.service.OfyService.ofy;
 
+import com.appspot.yourlittleone.Constants;
+import com.appspot.yourlittleone.service.Geohash;
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.api.server.spi.config.ApiTransformer;
+import com.google.api.server.spi.config.ResourcePropertySchema;
+import com.google.api.server.spi.config.ResourceSchema;
+import com.google.api.server.spi.config.ResourceTransformer;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
 import com.appspot.yourlittleone.form.ActivityForm;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Activity class stores activity information.
  */
 @Entity
+@Cache(expirationSeconds = Constants.ACTIVITY_ENTITY_CACHE_EXPIRATION_SECONDS)
+@ApiTransformer(Activity.ResponseTransformer.class)
 public final class Activity {
 
     private static final String DEFAULT_LOCATION = "Default Location";
@@ -59,6 +72,30 @@ public final class Activity {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String organizerUserId;
 
+    /**
+     * The display name of the organizer, resolved in a batch by the list endpoints.
+     *
+     * Not persisted; null until resolved.
+     */
+    @Ignore
+    private String organizerDisplayName;
+
+    /**
+     * The version of the organizer's Profile, resolved with organizerDisplayName.
+     *
+     * Not persisted; 0 when the organizer has no Profile.
+     */
+    @Ignore
+    private long organizerVersion;
+
+    /**
+     * The websafe key, built on first use.
+     *
+     * Not persisted; the key is fixed once the id is assigned.
+     */
+    @Ignore
+    private String websafeKey;
+
     /**
      * Topics related to this activity.
      */
@@ -71,9 +108,31 @@ public final class Activity {
     @Index
     private String location;
 
+    /**
+     * The latitude of the place, null when the organizer didn't pin it.
+     */
+    private Double latitude;
+
+    /**
+     * The longitude of the place, null when the organizer didn't pin it.
+     */
+    private Double longitude;
+
+    /**
+     * The geohashes of the place at every precision from Geohash.MIN_PRECISION to
+     * Geohash.MAX_PRECISION, for proximity queries, null when the place isn't pinned.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private List<String> geohashes;
+
     /**
      * The starting date and time of this activity.
+     *
+     * Indexed for date range queries. Activities saved before it was indexed need a backfill,
+     * see ReindexActivitiesServlet.
      */
+    @Index
     private Date startDate;
 
     /**
@@ -97,9 +156,29 @@ public final class Activity {
 
     /**
      * Number of seats currently available.
+     *
+     * When the seats are sharded, this is only a snapshot taken on the last update, and the
+     * actual number is the sum of the SeatShards.
      */
     @Index
     private int seatsAvailable;
+
+    /**
+     * Bumped on every change of this entity, for the ETag of the Activity.
+     *
+     * Changes to the SeatShards don't bump it, the ETag covers them through seatsAvailable.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long version;
+
+    /**
+     * The number of SeatShards holding the seats, or 0 when the seats are held by this entity.
+     *
+     * Fixed on creation. Indexed for projection queries, see ActivitySummary.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShards;
     
     /**
      * Just making the default constructor private.
@@ -112,6 +191,11 @@ public final class Activity {
         this.id = id;
         this.profileKey = Key.create(Profile.class, organizerUserId);
         this.organizerUserId = organizerUserId;
+        if (activityForm.getSeatShards() < 0 || activityForm.getSeatShards() > SeatShard.MAX_SHARDS) {
+            throw new IllegalArgumentException(
+                    "The number of seat shards must be between 0 and " + SeatShard.MAX_SHARDS);
+        }
+        this.seatShards = activityForm.getSeatShards();
         updateWithActivityForm(activityForm);
     }
 
@@ -132,8 +216,16 @@ public final class Activity {
         return profileKey;
     }
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Activity> getKey() {
+        return Key.create(profileKey, Activity.class, id);
+    }
+
     public String getWebsafeKey() {
-        return Key.create(profileKey, Activity.class, id).getString();
+        if (websafeKey == null) {
+            websafeKey = getKey().getString();
+        }
+        return websafeKey;
     }
 
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -143,14 +235,34 @@ public final class Activity {
 
     /**
      * Returns organizer's display name.
+     *
+     * Uses the name attached by setOrganizerProfile if any, and only falls back to loading
+     * the organizer's Profile otherwise.
+     *
      * @return organizer's display name. If there is no Profile, return his/her gplusId.
      */
     public String getOrganizerDisplayName() {
-        Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
-        if (organizer == null) {
-            return organizerUserId;
-        } else {
-            return organizer.getDisplayName();
+        resolveOrganizer();
+        return organizerDisplayName;
+    }
+
+    /**
+     * Attaches the organizer's Profile fetched by the caller, so that serializing this Activity
+     * doesn't need a datastore round trip.
+     *
+     * @param organizer the organizer's Profile, or null if the organizer has no Profile.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public void setOrganizerProfile(Profile organizer) {
+        this.organizerDisplayName = organizer == null || organizer.getDisplayName() == null
+                ? organizerUserId : organizer.getDisplayName();
+        this.organizerVersion = organizer == null ? 0 : organizer.getVersion();
+    }
+
+    private void resolveOrganizer() {
+        if (organizerDisplayName == null) {
+            Profile organizer = ofy().load().key(profileKey).now();
+            setOrganizerProfile(organizer);
         }
     }
 
@@ -166,6 +278,23 @@ public final class Activity {
         return location;
     }
 
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Returns true when the place is pinned with a latitude and a longitude.
+     *
+     * @return true when the activity can be found by proximity queries.
+     */
+    public boolean hasCoordinates() {
+        return latitude != null && longitude != null;
+    }
+
     /**
      * Returns a defensive copy of startDate if not null.
      * @return a defensive copy of startDate if not null.
@@ -194,6 +323,65 @@ public final class Activity {
         return seatsAvailable;
     }
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the entity tag of this Activity as it is returned to the client.
+     *
+     * Sharded Activities must have their seatsAvailable attached first. The organizer's
+     * Profile is loaded unless it was attached with setOrganizerProfile.
+     *
+     * @return the version, the version of the organizer's Profile and the number of seats
+     *     available.
+     */
+    public String getEtag() {
+        resolveOrganizer();
+        return version + "-" + organizerVersion + "-" + seatsAvailable;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShards() {
+        return seatShards;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isSeatSharded() {
+        return seatShards > 0;
+    }
+
+    /**
+     * Replaces seatsAvailable with the sum of the SeatShards.
+     *
+     * @param seatsAvailable the number of seats available on all shards.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public void syncSeatsAvailable(final int seatsAvailable) {
+        Preconditions.checkState(isSeatSharded(), "The seats of this activity are not sharded.");
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    private void updateCoordinates(Double latitude, Double longitude) {
+        if ((latitude == null) != (longitude == null)) {
+            throw new IllegalArgumentException("Latitude and longitude must be set together.");
+        }
+        if (latitude == null) {
+            this.latitude = null;
+            this.longitude = null;
+            this.geohashes = null;
+            return;
+        }
+        if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180) {
+            throw new IllegalArgumentException(
+                    "Invalid coordinates: " + latitude + ", " + longitude);
+        }
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.geohashes = Geohash.prefixes(latitude, longitude);
+    }
+
     /**
      * Updates the Activity with ActivityForm.
      * This method is used upon object creation as well as updating existing Activities.
@@ -206,6 +394,7 @@ public final class Activity {
         List<String> topics = activityForm.getTopics();
         this.topics = topics == null || topics.isEmpty() ? DEFAULT_TOPICS : topics;
         this.location = activityForm.getLocation() == null ? DEFAULT_LOCATION : activityForm.getLocation();
+        updateCoordinates(activityForm.getLatitude(), activityForm.getLongitude());
 
         Date startDate = activityForm.getStartDate();
         this.startDate = startDate == null ? null : new Date(startDate.getTime());
@@ -228,6 +417,7 @@ public final class Activity {
         // However, if there are already some seats allocated, we should subtract that numbers.
         this.maxAttendees = activityForm.getMaxAttendees();
         this.seatsAvailable = this.maxAttendees - seatsAllocated;
+        version++;
     }
 
     public void bookSeats(final int number) {
@@ -239,6 +429,7 @@ public final class Activity {
           }
         }
         seatsAvailable = seatsAvailable - number;
+        version++;
     }
 
     public void giveBackSeats(final int number) {
@@ -246,6 +437,115 @@ public final class Activity {
             throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
         }
         seatsAvailable = seatsAvailable + number;
+        version++;
+    }
+
+    /**
+     * Serializes Activities returned by the API straight from their fields.
+     *
+     * The getters make defensive copies of topics and the dates, which are not needed when the
+     * Activity is only read to be written out. The properties and their types are the same as
+     * those of the getters, so the API schema doesn't change.
+     */
+    public static final class ResponseTransformer implements ResourceTransformer<Activity> {
+
+        private static final ResourceSchema SCHEMA = ResourceSchema.builderForType(Activity.class)
+                .setName("Activity")
+                .addProperty("id", ResourcePropertySchema.of(long.class))
+                .addProperty("name", ResourcePropertySchema.of(String.class))
+                .addProperty("description", ResourcePropertySchema.of(String.class))
+                .addProperty("websafeKey", ResourcePropertySchema.of(String.class))
+                .addProperty("organizerDisplayName", ResourcePropertySchema.of(String.class))
+                .addProperty("topics",
+                        ResourcePropertySchema.of(new TypeToken<List<String>>() {}.getType()))
+                .addProperty("location", ResourcePropertySchema.of(String.class))
+                .addProperty("latitude", ResourcePropertySchema.of(Double.class))
+                .addProperty("longitude", ResourcePropertySchema.of(Double.class))
+                .addProperty("startDate", ResourcePropertySchema.of(Date.class))
+                .addProperty("endDate", ResourcePropertySchema.of(Date.class))
+                .addProperty("month", ResourcePropertySchema.of(int.class))
+                .addProperty("maxAttendees", ResourcePropertySchema.of(int.class))
+                .addProperty("seatsAvailable", ResourcePropertySchema.of(int.class))
+                .addProperty("etag", ResourcePropertySchema.of(String.class))
+                .build();
+
+        /**
+         * The number of properties, so that the map is sized once.
+         */
+        private static final int PROPERTY_COUNT = 15;
+
+        @Override
+        public ResourceSchema getResourceSchema() {
+            return SCHEMA;
+        }
+
+        @Override
+        public Map<String, Object> transformTo(Activity activity) {
+            Map<String, Object> json = new LinkedHashMap<>(PROPERTY_COUNT * 4 / 3 + 1);
+            json.put("id", activity.id);
+            putIfNotNull(json, "name", activity.name);
+            putIfNotNull(json, "description", activity.description);
+            json.put("websafeKey", activity.getWebsafeKey());
+            // Resolved in a batch by the list endpoints, loaded here otherwise.
+            putIfNotNull(json, "organizerDisplayName", activity.getOrganizerDisplayName());
+            putIfNotNull(json, "topics", activity.topics);
+            putIfNotNull(json, "location", activity.location);
+            putIfNotNull(json, "latitude", activity.latitude);
+            putIfNotNull(json, "longitude", activity.longitude);
+            putIfNotNull(json, "startDate", activity.startDate);
+            putIfNotNull(json, "endDate", activity.endDate);
+            json.put("month", activity.month);
+            json.put("maxAttendees", activity.maxAttendees);
+            json.put("seatsAvailable", activity.seatsAvailable);
+            json.put("etag", activity.getEtag());
+            return json;
+        }
+
+        /**
+         * Reads an Activity from the properties written by transformTo.
+         *
+         * The key is taken from websafeKey. The etag isn't read, it is derived from the versions
+         * which aren't part of the resource.
+         */
+        @Override
+        @SuppressWarnings("unchecked")
+        public Activity transformFrom(Map<String, Object> json) {
+            Activity activity = new Activity();
+            String websafeKey = (String) json.get("websafeKey");
+            if (websafeKey != null) {
+                Key<Activity> key = Key.create(websafeKey);
+                activity.id = key.getId();
+                activity.profileKey = key.getParent();
+                activity.organizerUserId = key.getParent().getName();
+                activity.websafeKey = websafeKey;
+            } else if (json.get("id") != null) {
+                activity.id = ((Number) json.get("id")).longValue();
+            }
+            activity.name = (String) json.get("name");
+            activity.description = (String) json.get("description");
+            activity.organizerDisplayName = (String) json.get("organizerDisplayName");
+            activity.topics = (List<String>) json.get("topics");
+            activity.location = (String) json.get("location");
+            activity.updateCoordinates((Double) json.get("latitude"),
+                    (Double) json.get("longitude"));
+            activity.startDate = (Date) json.get("startDate");
+            activity.endDate = (Date) json.get("endDate");
+            activity.month = intValue(json.get("month"));
+            activity.maxAttendees = intValue(json.get("maxAttendees"));
+            activity.seatsAvailable = intValue(json.get("seatsAvailable"));
+            return activity;
+        }
+
+        private static int intValue(Object value) {
+            return value == null ? 0 : ((Number) value).intValue();
+        }
+
+        private static void putIfNotNull(Map<String, Object> json, String name, Object value) {
+            // Null properties are left out, as they are for the other resources.
+            if (value != null) {
+                json.put(name, value);
+            }
+        }
     }
 
     @Override
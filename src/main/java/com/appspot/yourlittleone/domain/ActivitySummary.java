@@ -0,0 +1,136 @@
+package com.appspot.yourlittleone.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.objectify.Key;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The fields of an Activity shown in lists, read from a projection query where possible.
+ *
+ * All projected properties are indexed on Activity. A projection query only returns entities
+ * having an index entry for every projected property, so Activities saved before startDate and
+ * seatShards were indexed are missing from it until they are backfilled, see
+ * ReindexActivitiesServlet. Projection queries are only used once the backfill is done, see
+ * Constants.SUMMARY_PROJECTION_PROPERTY.
+ */
+public final class ActivitySummary {
+
+    /**
+     * The Activity properties read by a projection query for a summary, with the types they
+     * are read as.
+     */
+    public static final Map<String, Class<?>> PROJECTED_PROPERTIES =
+            ImmutableMap.<String, Class<?>>of("name", String.class, "location", String.class,
+                    "startDate", Date.class, "seatsAvailable", Long.class, "seatShards", Long.class);
+
+    private final Key<Activity> key;
+
+    private final String name;
+
+    private final String location;
+
+    private final Date startDate;
+
+    private int seatsAvailable;
+
+    private final int seatShards;
+
+    private ActivitySummary(Key<Activity> key, String name, String location, Date startDate,
+                            int seatsAvailable, int seatShards) {
+        this.key = key;
+        this.name = name;
+        this.location = location;
+        this.startDate = startDate;
+        this.seatsAvailable = seatsAvailable;
+        this.seatShards = seatShards;
+    }
+
+    /**
+     * Returns the summary of a loaded Activity.
+     *
+     * @param activity An Activity, with seatsAvailable attached when its seats are sharded.
+     * @return the summary of the Activity.
+     */
+    public static ActivitySummary of(Activity activity) {
+        return new ActivitySummary(activity.getKey(), activity.getName(), activity.getLocation(),
+                activity.getStartDate(), activity.getSeatsAvailable(), activity.getSeatShards());
+    }
+
+    /**
+     * Returns the summary of an Activity read by a projection query.
+     *
+     * @param entity An entity returned by a projection on PROJECTED_PROPERTIES.
+     * @param fixedValues Values of the properties the query has an equality filter on, which
+     *                    can't be projected and are the same for every result.
+     * @return the summary of the Activity.
+     */
+    public static ActivitySummary fromProjection(Entity entity, Map<String, Object> fixedValues) {
+        return new ActivitySummary(Key.<Activity>create(entity.getKey()),
+                (String) projected(entity, fixedValues, "name"),
+                (String) projected(entity, fixedValues, "location"),
+                (Date) projected(entity, fixedValues, "startDate"),
+                intValue(projected(entity, fixedValues, "seatsAvailable")),
+                intValue(projected(entity, fixedValues, "seatShards")));
+    }
+
+    private static Object projected(Entity entity, Map<String, Object> fixedValues,
+                                    String property) {
+        return fixedValues.containsKey(property)
+                ? fixedValues.get(property) : entity.getProperty(property);
+    }
+
+    private static int intValue(Object value) {
+        // The datastore stores integers as longs.
+        return value == null ? 0 : ((Number) value).intValue();
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Activity> getKey() {
+        return key;
+    }
+
+    public String getWebsafeKey() {
+        return key.getString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShards() {
+        return seatShards;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isSeatSharded() {
+        return seatShards > 0;
+    }
+
+    /**
+     * Replaces seatsAvailable with the sum of the SeatShards.
+     *
+     * @param seatsAvailable the number of seats available on all shards.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public void syncSeatsAvailable(final int seatsAvailable) {
+        this.seatsAvailable = seatsAvailable;
+    }
+}
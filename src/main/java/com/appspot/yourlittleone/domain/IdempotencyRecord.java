@@ -0,0 +1,115 @@
+package com.appspot.yourlittleone.domain;
+
+import com.appspot.yourlittleone.Constants;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * IdempotencyRecord class records the outcome of a mutation sent with an idempotency key, so that
+ * a client retrying the mutation gets the same outcome instead of running it again.
+ *
+ * The IdempotencyRecord is a child of the user's Profile and is saved in the transaction of the
+ * mutation, so the outcome is recorded if and only if the mutation commits. Records are served
+ * from the Objectify global cache and expire after IDEMPOTENCY_RECORD_EXPIRATION_SECONDS.
+ */
+@Entity
+@Cache(expirationSeconds = Constants.IDEMPOTENCY_RECORD_EXPIRATION_SECONDS)
+public final class IdempotencyRecord {
+
+    /**
+     * The mutations accepting an idempotency key.
+     */
+    public enum Operation {
+        CREATE_ACTIVITY,
+        REGISTER,
+        UNREGISTER
+    }
+
+    /**
+     * The Operation and the idempotency key sent by the client.
+     */
+    @Id
+    private String id;
+
+    /**
+     * Holds the user's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    /**
+     * The websafe key of the Activity created, registered to or unregistered from.
+     */
+    private String websafeActivityKey;
+
+    /**
+     * The result of the mutation, null when it failed with a conflict.
+     */
+    private Boolean result;
+
+    /**
+     * The message of the ConflictException the mutation failed with, or null.
+     */
+    private String conflictMessage;
+
+    /**
+     * When the record expires, indexed for deleting expired records.
+     */
+    @Index
+    private Date expires;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private IdempotencyRecord() {}
+
+    public IdempotencyRecord(final Key<IdempotencyRecord> key, final String websafeActivityKey,
+                             final Boolean result, final String conflictMessage) {
+        this.id = key.getName();
+        this.profileKey = key.getParent();
+        this.websafeActivityKey = websafeActivityKey;
+        this.result = result;
+        this.conflictMessage = conflictMessage;
+        this.expires = new Date(System.currentTimeMillis()
+                + Constants.IDEMPOTENCY_RECORD_EXPIRATION_SECONDS * 1000L);
+    }
+
+    /**
+     * Returns the key of the IdempotencyRecord of a mutation.
+     *
+     * @param userId The App Engine userId of the user sending the mutation.
+     * @param operation The mutation.
+     * @param idempotencyKey The idempotency key sent by the client.
+     * @return the key of the IdempotencyRecord.
+     */
+    public static Key<IdempotencyRecord> key(final String userId, final Operation operation,
+                                             final String idempotencyKey) {
+        return Key.create(Key.create(Profile.class, userId), IdempotencyRecord.class,
+                operation.name() + ":" + idempotencyKey);
+    }
+
+    public String getWebsafeActivityKey() {
+        return websafeActivityKey;
+    }
+
+    public Boolean getResult() {
+        return result;
+    }
+
+    public String getConflictMessage() {
+        return conflictMessage;
+    }
+
+    /**
+     * Returns true when the record is past its expiration and must not be replayed.
+     */
+    public boolean isExpired() {
+        return expires == null || expires.getTime() <= System.currentTimeMillis();
+    }
+}
@@ -1,7 +1,11 @@
 package com.appspot.yourlittleone.domain;
 
+import com.appspot.yourlittleone.Constants;
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.collect.ImmutableList;
 import com.appspot.yourlittleone.form.ProfileForm.Gender;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 
@@ -12,6 +16,7 @@ import java.util.List;
  * Profile class stores user's profile data.
  */
 @Entity
+@Cache(expirationSeconds = Constants.PROFILE_ENTITY_CACHE_EXPIRATION_SECONDS)
 public final class Profile {
   /**
    * Use userId (get from User's API getUserId()) as the datastore key.
@@ -35,9 +40,23 @@ public final class Profile {
   private Gender gender;
 
   /**
-   * Keys of the activities that this user registers to attend.
+   * Keys of the activities that this user registered to attend, from before registrations
+   * were stored as Registration entities.
+   *
+   * Only read for migrating them, new registrations never go here.
    */
   private List<String> activityKeysToAttend = new ArrayList<>(0);
+
+  /**
+   * Bumped whenever this user registers or unregisters, for the ETag of the attendance list.
+   */
+  private long attendanceVersion;
+
+  /**
+   * Bumped whenever the displayName changes, for the ETags of the activities this user
+   * organizes.
+   */
+  private long version;
   
   /**
    * Just making the default constructor private.
@@ -100,12 +119,31 @@ public final class Profile {
   }
 
   /**
-   * Getter for activityKeysToAttend.
-   * 
-   * @return an immutable copy of activityKeysToAttend.
+   * Getter for attendanceVersion.
+   *
+   * @return attendanceVersion.
    */
-  public List<String> getActivityKeysToAttend() {
-    return ImmutableList.copyOf(activityKeysToAttend);
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public long getAttendanceVersion() {
+    return attendanceVersion;
+  }
+
+  /**
+   * Getter for version.
+   *
+   * @return version.
+   */
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Records that the set of activities this user attends has changed. The caller is
+   * responsible for saving this Profile in the same transaction as the Registration.
+   */
+  public void bumpAttendanceVersion() {
+    attendanceVersion++;
   }
 
   /**
@@ -115,8 +153,9 @@ public final class Profile {
    * @param gender
    */
   public void update(String displayName, Gender gender) {
-    if (displayName != null) {
+    if (displayName != null && !displayName.equals(this.displayName)) {
       this.displayName = displayName;
+      version++;
     }
     if (gender != null) {
       this.gender = gender;
@@ -124,30 +163,39 @@ public final class Profile {
   }
 
   /**
-   * Adds a activityKey to activityKeysToAttend.
+   * Returns the activity keys registered before the Registration entity existed, and clears
+   * them from this Profile. The caller is responsible for saving them as Registrations and for
+   * saving this Profile in the same transaction.
    *
-   * The method addToActivityKeysToAttend is not thread-safe, but we need a
-   * transaction for calling this method after all, so it is not a practical
-   * issue.
+   * @return websafe activity keys to migrate, empty when there is nothing left to migrate.
+   */
+  public List<String> takeLegacyActivityKeysToAttend() {
+    if (activityKeysToAttend == null || activityKeysToAttend.isEmpty()) {
+      return ImmutableList.of();
+    }
+    List<String> legacyKeys = ImmutableList.copyOf(activityKeysToAttend);
+    activityKeysToAttend = new ArrayList<>(0);
+    return legacyKeys;
+  }
+
+  /**
+   * Returns the activity keys registered before the Registration entity existed, without
+   * clearing them, for reads which don't migrate them.
    *
-   * @param activityKey
-   *          a websafe String representation of the activityKey.
+   * @return websafe activity keys not migrated yet, empty when there are none.
    */
-  public void addToActivityKeysToAttend(String activityKey) {
-    activityKeysToAttend.add(activityKey);
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public List<String> getLegacyActivityKeysToAttend() {
+    return activityKeysToAttend == null
+        ? ImmutableList.<String>of() : ImmutableList.copyOf(activityKeysToAttend);
   }
 
   /**
-   * Remove the activityKey from activityKeysToAttend.
+   * Returns true when this Profile still has registrations to migrate.
    *
-   * @param activityKey
-   *          a websafe String representation of the activityKey.
-   */
-  public void unregisterFromActivity(String activityKey) {
-    if (activityKeysToAttend.contains(activityKey)) {
-      activityKeysToAttend.remove(activityKey);
-    } else {
-      throw new IllegalArgumentException("Invalid activity key: " + activityKey);
-    }
+   * @return true when there are legacy activity keys.
+   */
+  public boolean hasLegacyActivityKeysToAttend() {
+    return activityKeysToAttend != null && !activityKeysToAttend.isEmpty();
   }
 }
@@ -0,0 +1,107 @@
+package com.appspot.yourlittleone.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Registration class records that a user registered to attend an Activity.
+ *
+ * The Registration is a child of the user's Profile and is named after the websafe Activity key,
+ * so checking a registration is a single key get and registering doesn't rewrite the Profile.
+ */
+@Entity
+public final class Registration {
+
+    /**
+     * The websafe key of the Activity.
+     */
+    @Id
+    private String id;
+
+    /**
+     * Holds the attendee's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    /**
+     * The key of the Activity, indexed for listing the attendees of an Activity.
+     */
+    @Index
+    private Key<Activity> activityKey;
+
+    /**
+     * When the user registered.
+     */
+    private Date registeredAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Registration() {}
+
+    public Registration(final String userId, final Key<Activity> activityKey) {
+        this.id = activityKey.getString();
+        this.profileKey = Key.create(Profile.class, userId);
+        this.activityKey = activityKey;
+        this.registeredAt = new Date();
+    }
+
+    /**
+     * Returns the key of the Registration of the user to the Activity.
+     *
+     * @param userId The App Engine userId of the attendee.
+     * @param activityKey The key of the Activity.
+     * @return the key of the Registration.
+     */
+    public static Key<Registration> key(final String userId, final Key<Activity> activityKey) {
+        return Key.create(Key.create(Profile.class, userId), Registration.class,
+                activityKey.getString());
+    }
+
+    /**
+     * Returns the Registrations of the activity keys still stored inline on the Profile, and
+     * clears them from it. The caller saves the Registrations and the Profile in the same
+     * transaction, they are all in the Profile's entity group.
+     *
+     * @param profile A Profile which may still have legacy activity keys.
+     * @return the Registrations to save, empty when there is nothing left to migrate.
+     */
+    public static List<Registration> takeLegacyRegistrations(final Profile profile) {
+        List<Registration> registrations = new ArrayList<>();
+        for (String websafeActivityKey : profile.takeLegacyActivityKeysToAttend()) {
+            registrations.add(new Registration(profile.getUserId(),
+                    Key.<Activity>create(websafeActivityKey)));
+        }
+        return registrations;
+    }
+
+    /**
+     * Returns the key of the Activity a Registration refers to, without loading the Registration.
+     *
+     * @param registrationKey The key of a Registration.
+     * @return the key of the Activity.
+     */
+    public static Key<Activity> activityKeyOf(final Key<Registration> registrationKey) {
+        return Key.create(registrationKey.getName());
+    }
+
+    public Key<Profile> getProfileKey() {
+        return profileKey;
+    }
+
+    public Key<Activity> getActivityKey() {
+        return activityKey;
+    }
+
+    public Date getRegisteredAt() {
+        return registeredAt == null ? null : new Date(registeredAt.getTime());
+    }
+}
@@ -0,0 +1,155 @@
+package com.appspot.yourlittleone.domain;
+
+import com.google.common.base.Preconditions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SeatShard class holds a slice of the seats of a high-demand Activity.
+ *
+ * Each shard is a root entity, so registrations for the same Activity landing on different
+ * shards don't contend on a single entity group. The capacities of all shards add up to the
+ * maxAttendees of the Activity.
+ */
+@Entity
+public final class SeatShard {
+
+    /**
+     * The upper bound of shards per Activity. Updating a sharded Activity touches all shards
+     * plus the Activity in a single cross-group transaction, which allows up to 25 entity groups.
+     */
+    public static final int MAX_SHARDS = 20;
+
+    /**
+     * The websafe key of the Activity followed by the shard index.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The number of seats this shard holds.
+     */
+    private int capacity;
+
+    /**
+     * Number of seats of this shard currently available.
+     */
+    private int seatsAvailable;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SeatShard() {}
+
+    private SeatShard(final String id, final int capacity) {
+        this.id = id;
+        this.capacity = capacity;
+        this.seatsAvailable = capacity;
+    }
+
+    /**
+     * Creates the shards for a newly created Activity, splitting maxAttendees evenly.
+     *
+     * @param activityKey The key of the Activity.
+     * @param shardCount The number of shards.
+     * @param maxAttendees The capacity of the Activity.
+     * @return the new shards, not saved yet.
+     */
+    public static List<SeatShard> createShards(final Key<Activity> activityKey,
+                                               final int shardCount, final int maxAttendees) {
+        Preconditions.checkArgument(shardCount > 0 && shardCount <= MAX_SHARDS,
+                "The number of seat shards must be between 1 and " + MAX_SHARDS);
+        List<SeatShard> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new SeatShard(shardId(activityKey, i), share(maxAttendees, shardCount, i)));
+        }
+        return shards;
+    }
+
+    /**
+     * Returns the keys of all shards of the Activity.
+     *
+     * @param activityKey The key of the Activity.
+     * @param shardCount The number of shards.
+     * @return the keys of the shards.
+     */
+    public static List<Key<SeatShard>> keys(final Key<Activity> activityKey, final int shardCount) {
+        List<Key<SeatShard>> keys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(Key.create(SeatShard.class, shardId(activityKey, i)));
+        }
+        return keys;
+    }
+
+    /**
+     * Redistributes the free seats across the shards after the capacity of the Activity changed,
+     * keeping the seats already allocated on each shard.
+     *
+     * Must be called in a transaction holding all shards of the Activity.
+     *
+     * @param shards All shards of the Activity.
+     * @param maxAttendees The new capacity of the Activity.
+     */
+    public static void rebalance(final List<SeatShard> shards, final int maxAttendees) {
+        int seatsAllocated = 0;
+        for (SeatShard shard : shards) {
+            seatsAllocated += shard.getSeatsAllocated();
+        }
+        if (maxAttendees < seatsAllocated) {
+            throw new IllegalArgumentException(seatsAllocated + " seats are already allocated, "
+                    + "but you tried to set maxAttendees to " + maxAttendees);
+        }
+        int freeSeats = maxAttendees - seatsAllocated;
+        for (int i = 0; i < shards.size(); i++) {
+            SeatShard shard = shards.get(i);
+            int shardSeatsAllocated = shard.getSeatsAllocated();
+            shard.seatsAvailable = share(freeSeats, shards.size(), i);
+            shard.capacity = shardSeatsAllocated + shard.seatsAvailable;
+        }
+    }
+
+    private static String shardId(final Key<Activity> activityKey, final int index) {
+        return activityKey.getString() + "#" + index;
+    }
+
+    /**
+     * Returns the index-th share when splitting total into count shares as evenly as possible.
+     */
+    private static int share(final int total, final int count, final int index) {
+        return total / count + (index < total % count ? 1 : 0);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public int getSeatsAllocated() {
+        return capacity - seatsAvailable;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available on this shard.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        if (seatsAvailable + number > capacity) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+        seatsAvailable = seatsAvailable + number;
+    }
+}
@@ -44,6 +44,22 @@ public final class ActivityForm {
      */
     private int maxAttendees;
 
+    /**
+     * The number of shards to split the seats across, for activities expecting a registration
+     * rush. 0 keeps all seats on the Activity itself.
+     */
+    private int seatShards;
+
+    /**
+     * The latitude of the place, optional. Set together with longitude.
+     */
+    private Double latitude;
+
+    /**
+     * The longitude of the place, optional. Set together with latitude.
+     */
+    private Double longitude;
+
     public String getName() {
         return name;
     }
@@ -71,4 +87,16 @@ public final class ActivityForm {
     public int getMaxAttendees() {
         return maxAttendees;
     }
+
+    public int getSeatShards() {
+        return seatShards;
+    }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
 }
@@ -0,0 +1,26 @@
+package com.appspot.yourlittleone.form;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing a bulk Activity import sent from the client.
+ */
+public final class ActivityImportForm {
+    /**
+     * The activities to create, one ActivityForm per row.
+     */
+    private List<ActivityForm> activities;
+
+    private ActivityImportForm() {}
+
+    /**
+     * @return the rows in order, with null for an empty row so that the others keep their index.
+     */
+    public List<ActivityForm> getActivities() {
+        return activities == null
+                ? Collections.<ActivityForm>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(activities));
+    }
+}
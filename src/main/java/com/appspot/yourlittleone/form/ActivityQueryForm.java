@@ -6,11 +6,29 @@ import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.collect.ImmutableList;
 import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.service.FieldStatistics;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.base.Preconditions;
 
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.cmd.Query;
 
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.logging.Logger;
 
 /**
@@ -20,11 +38,49 @@ public class ActivityQueryForm {
 
     private static final Logger LOG = Logger.getLogger(ActivityQueryForm.class.getName());
 
+    /**
+     * The number of activities returned per page when the client doesn't specify pageSize.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * The upper bound of pageSize, so that a single call always reads a bounded slice.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * The maximum number of activities read from the datastore for a single page when some
+     * filters are applied in memory. A page may come back short, with a nextPageToken, when the
+     * cap is hit.
+     */
+    public static final int MAX_SCANNED = 1000;
+
+    /**
+     * The estimated fraction of activities matching a != filter.
+     */
+    private static final double NE_SELECTIVITY = 0.9;
+
+    /**
+     * The estimated fraction of activities matching a range filter without statistics.
+     */
+    private static final double DEFAULT_RANGE_SELECTIVITY = 0.5;
+
+    /**
+     * The ISO 8601 formats accepted as values of DATE fields. A date without a time is midnight
+     * UTC.
+     */
+    private static final String[] DATE_PATTERNS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXXX",
+            "yyyy-MM-dd'T'HH:mm:ssXXX",
+            "yyyy-MM-dd'T'HH:mmXXX",
+            "yyyy-MM-dd"
+    };
+
     /**
      * Enum representing a field type.
      */
     public static enum FieldType {
-        STRING, INTEGER
+        STRING, INTEGER, DATE
     }
 
     /**
@@ -34,7 +90,8 @@ public class ActivityQueryForm {
         LOCATION("location", FieldType.STRING),
         TOPIC("topics", FieldType.STRING),
         MONTH("month", FieldType.INTEGER),
-        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER);
+        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER),
+        START_DATE("startDate", FieldType.DATE);
 
         private String fieldName;
 
@@ -54,27 +111,54 @@ public class ActivityQueryForm {
      * Enum representing an operator.
      */
     public static enum Operator {
-        EQ("=="),
-        LT("<"),
-        GT(">"),
-        LTEQ("<="),
-        GTEQ(">="),
-        NE("!=");
+        EQ("==", FilterOperator.EQUAL),
+        LT("<", FilterOperator.LESS_THAN),
+        GT(">", FilterOperator.GREATER_THAN),
+        LTEQ("<=", FilterOperator.LESS_THAN_OR_EQUAL),
+        GTEQ(">=", FilterOperator.GREATER_THAN_OR_EQUAL),
+        NE("!=", FilterOperator.NOT_EQUAL);
 
         private String queryOperator;
 
-        private Operator(String queryOperator) {
+        private FilterOperator filterOperator;
+
+        private Operator(String queryOperator, FilterOperator filterOperator) {
             this.queryOperator = queryOperator;
+            this.filterOperator = filterOperator;
         }
 
         private String getQueryOperator() {
             return this.queryOperator;
         }
 
+        private FilterOperator getFilterOperator() {
+            return this.filterOperator;
+        }
+
         private boolean isInequalityFilter() {
             return this.queryOperator.contains("<") || this.queryOperator.contains(">") ||
                     this.queryOperator.contains("!");
         }
+
+        /**
+         * Applies this operator to the result of comparing a property to the filter value.
+         */
+        private boolean isSatisfiedBy(int comparison) {
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case LT:
+                    return comparison < 0;
+                case GT:
+                    return comparison > 0;
+                case LTEQ:
+                    return comparison <= 0;
+                case GTEQ:
+                    return comparison >= 0;
+                default:
+                    return comparison != 0;
+            }
+        }
     }
 
     /**
@@ -112,27 +196,153 @@ public class ActivityQueryForm {
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * The field whose inequality filters are run by the datastore, chosen by plan().
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Field inequalityField;
+
+    /**
+     * The inequality filters on other fields than inequalityField, applied in memory. Null until
+     * plan() runs.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-    private Filter inequalityFilter;
+    private List<Filter> residualFilters;
+
+    /**
+     * The maximum number of activities returned in a single page.
+     */
+    private Integer pageSize;
+
+    /**
+     * An opaque websafe datastore cursor returned as nextPageToken by the previous page.
+     */
+    private String pageToken;
 
     public ActivityQueryForm() {}
 
     /**
-     * Checks the feasibility of the whole query.
+     * Plans the query. The datastore allows inequality filters on a single field only, so when
+     * there are several, the filters on the most selective field are run by the datastore and
+     * the others are applied in memory by matches().
      */
-    private void checkFilters() {
+    private void plan() {
+        if (residualFilters != null) {
+            return;
+        }
+        Map<Field, Double> selectivities = new EnumMap<>(Field.class);
         for (Filter filter : this.filters) {
             if (filter.operator.isInequalityFilter()) {
-                // Only one inequality filter is allowed.
-                if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                    throw new IllegalArgumentException(
-                            "Inequality filter is allowed on only one field.");
+                Double selectivity = selectivities.get(filter.field);
+                selectivities.put(filter.field, selectivity == null ? 1 : selectivity);
+            }
+        }
+        if (selectivities.size() > 1) {
+            for (Filter filter : this.filters) {
+                if (filter.operator.isInequalityFilter()) {
+                    selectivities.put(filter.field,
+                            selectivities.get(filter.field) * estimateSelectivity(filter));
                 }
-                inequalityFilter = filter;
             }
         }
+        inequalityField = null;
+        for (Map.Entry<Field, Double> entry : selectivities.entrySet()) {
+            if (inequalityField == null || entry.getValue() < selectivities.get(inequalityField)) {
+                inequalityField = entry.getKey();
+            }
+        }
+        residualFilters = new ArrayList<>(0);
+        for (Filter filter : this.filters) {
+            if (filter.operator.isInequalityFilter() && filter.field != inequalityField) {
+                residualFilters.add(filter);
+            }
+        }
+        if (!residualFilters.isEmpty()) {
+            LOG.info("Running inequality filters on " + inequalityField + " in the datastore, "
+                    + residualFilters.size() + " other filters in memory.");
+        }
+    }
+
+    /**
+     * Estimates the fraction of activities matching an inequality filter, from the range of
+     * the values of its field.
+     */
+    private static double estimateSelectivity(Filter filter) {
+        if (filter.operator == Operator.NE) {
+            return NE_SELECTIVITY;
+        }
+        FieldStatistics.Range range = null;
+        long value = 0;
+        if (filter.field.fieldType == FieldType.INTEGER) {
+            range = FieldStatistics.get(Key.getKind(Activity.class),
+                    filter.field.getFieldName(), Long.class);
+            value = parseInteger(filter.value);
+        } else if (filter.field.fieldType == FieldType.DATE) {
+            range = FieldStatistics.get(Key.getKind(Activity.class),
+                    filter.field.getFieldName(), Date.class);
+            value = parseDate(filter.value).getTime();
+        }
+        if (range == null) {
+            return DEFAULT_RANGE_SELECTIVITY;
+        }
+        double below = range.fractionBelow(value);
+        return filter.operator == Operator.LT || filter.operator == Operator.LTEQ
+                ? below : 1 - below;
+    }
+
+    /**
+     * Returns true when some filters are applied in memory rather than by the datastore.
+     *
+     * @return true when the results of getQuery() need to be checked with matches().
+     */
+    public boolean hasResidualFilters() {
+        plan();
+        return !residualFilters.isEmpty();
+    }
+
+    /**
+     * Applies the filters that the datastore doesn't run to an activity returned by getQuery().
+     *
+     * @param activity An Activity returned by getQuery().
+     * @return true when the activity matches all filters.
+     */
+    public boolean matches(Activity activity) {
+        plan();
+        for (Filter filter : residualFilters) {
+            if (!matches(activity, filter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Activity activity, Filter filter) {
+        switch (filter.field) {
+            case LOCATION:
+                return activity.getLocation() != null && filter.operator.isSatisfiedBy(
+                        activity.getLocation().compareTo(filter.value));
+            case TOPIC:
+                // Like the datastore, a list property matches when any of its values does.
+                List<String> topics = activity.getTopics();
+                if (topics != null) {
+                    for (String topic : topics) {
+                        if (filter.operator.isSatisfiedBy(topic.compareTo(filter.value))) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            case MONTH:
+                return filter.operator.isSatisfiedBy(Long.compare(activity.getMonth(),
+                        parseInteger(filter.value)));
+            case MAX_ATTENDEES:
+                return filter.operator.isSatisfiedBy(Long.compare(activity.getMaxAttendees(),
+                        parseInteger(filter.value)));
+            case START_DATE:
+                return activity.getStartDate() != null && filter.operator.isSatisfiedBy(
+                        activity.getStartDate().compareTo(parseDate(filter.value)));
+            default:
+                return false;
+        }
     }
 
     /**
@@ -144,6 +354,50 @@ public class ActivityQueryForm {
         return ImmutableList.copyOf(filters);
     }
 
+    /**
+     * Getter for pageSize.
+     *
+     * @return The requested page size, or null if not specified.
+     */
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Getter for pageToken.
+     *
+     * @return The websafe cursor to start the query at, or null for the first page.
+     */
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    /**
+     * Returns the page size actually applied to the query.
+     *
+     * @return pageSize clamped between 1 and MAX_PAGE_SIZE, or DEFAULT_PAGE_SIZE if not specified.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getEffectivePageSize() {
+        if (pageSize == null || pageSize <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Sets the paging parameters.
+     *
+     * @param pageSize The maximum number of activities in a page.
+     * @param pageToken The websafe cursor returned by the previous page.
+     * @return this for method chaining.
+     */
+    public ActivityQueryForm page(Integer pageSize, String pageToken) {
+        this.pageSize = pageSize;
+        this.pageToken = pageToken;
+        return this;
+    }
+
     /**
      * Adds a query filter.
      *
@@ -151,47 +405,222 @@ public class ActivityQueryForm {
      * @return this for method chaining.
      */
     public ActivityQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
-            }
-            inequalityFilter = filter;
-        }
         filters.add(filter);
+        residualFilters = null;
         return this;
     }
 
     /**
-     * Returns an Objectify Query object for the specified filters.
+     * Returns a canonical representation of this query, used as a cache key.
+     *
+     * The filters are sorted and their values normalized, so that equivalent forms sent with
+     * the filters in a different order map to the same key. The paging parameters are included.
+     *
+     * @return a String identifying the query and the page.
+     * @throws IllegalArgumentException when a value of an INTEGER field is not a number, or a
+     *     value of a DATE field is not an ISO 8601 date.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getCanonicalKey() {
+        List<String> canonicalFilters = new ArrayList<>(filters.size());
+        for (Filter filter : filters) {
+            String value;
+            if (filter.field.fieldType == FieldType.INTEGER) {
+                value = String.valueOf(parseInteger(filter.value));
+            } else if (filter.field.fieldType == FieldType.DATE) {
+                value = String.valueOf(parseDate(filter.value).getTime());
+            } else {
+                value = filter.value;
+            }
+            // Prefix the value with its length, so that no value can mimic a separator.
+            canonicalFilters.add(filter.field.name() + " " + filter.operator.name() + " "
+                    + value.length() + ":" + value);
+        }
+        Collections.sort(canonicalFilters);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String canonicalFilter : canonicalFilters) {
+            stringBuilder.append(canonicalFilter).append("|");
+        }
+        stringBuilder.append(getEffectivePageSize()).append("|");
+        if (pageToken != null) {
+            stringBuilder.append(pageToken);
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns an Objectify Query object for the specified filters, limited to a single page
+     * and starting at pageToken if specified.
+     *
+     * When hasResidualFilters(), the query is limited to MAX_SCANNED activities instead, and its
+     * results must be checked with matches().
      *
      * @return an Objectify Query.
+     * @throws IllegalArgumentException when pageToken is not a valid cursor.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Activity> getQuery() {
-        // First check the feasibility of inequality filters.
-        checkFilters();
+        // First pick the field whose inequality filters the datastore runs.
+        plan();
         Query<Activity> query = ofy().load().type(Activity.class);
-        if (inequalityFilter == null) {
+        if (inequalityField == null) {
             // Order by name.
             query = query.order("name");
         } else {
             // If we have any inequality filters, order by the field first.
-            query = query.order(inequalityFilter.field.getFieldName());
+            query = query.order(inequalityField.getFieldName());
             query = query.order("name");
         }
         for (Filter filter : this.filters) {
+            if (residualFilters.contains(filter)) {
+                // Applied in memory by matches().
+                continue;
+            }
             // Applies filters in order.
-            if (filter.field.fieldType == FieldType.STRING) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), filter.value);
-            } else if (filter.field.fieldType == FieldType.INTEGER) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
+            query = query.filter(String.format("%s %s", filter.field.getFieldName(),
+                    filter.operator.getQueryOperator()), queryValue(filter));
+        }
+        if (residualFilters.isEmpty()) {
+            query = query.limit(getEffectivePageSize());
+        } else {
+            // Some results get filtered out in memory, so read ahead in larger batches.
+            query = query.limit(MAX_SCANNED).chunk(MAX_PAGE_SIZE);
+        }
+        if (pageToken != null && !pageToken.isEmpty()) {
+            query = query.startAt(Cursor.fromWebSafeString(pageToken));
+        }
+        LOG.info(query.toString());
+        return query;
+    }
+
+    /**
+     * Returns a low-level projection query for the specified filters, with the same sort orders
+     * as getQuery(). Must not be used when hasResidualFilters(), and the results are paged with
+     * getFetchOptions().
+     *
+     * Properties with an equality filter can't be projected, so they are left out of the
+     * projection, and their values are given by getEqualityValues().
+     *
+     * @param properties The Activity properties to project, all of them indexed, with the
+     *                   types to read them as.
+     * @return a projection query on Activity.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public com.google.appengine.api.datastore.Query getProjectionQuery(
+            Map<String, Class<?>> properties) {
+        plan();
+        Preconditions.checkState(residualFilters.isEmpty(),
+                "A projection can't be filtered in memory.");
+        com.google.appengine.api.datastore.Query query =
+                new com.google.appengine.api.datastore.Query(Key.getKind(Activity.class));
+        Map<String, Object> equalityValues = getEqualityValues();
+        for (Map.Entry<String, Class<?>> property : properties.entrySet()) {
+            if (!equalityValues.containsKey(property.getKey())) {
+                query.addProjection(new PropertyProjection(property.getKey(), property.getValue()));
             }
         }
+        if (inequalityField != null) {
+            query.addSort(inequalityField.getFieldName());
+        }
+        query.addSort("name");
+        List<com.google.appengine.api.datastore.Query.Filter> predicates = new ArrayList<>();
+        for (Filter filter : this.filters) {
+            predicates.add(new FilterPredicate(filter.field.getFieldName(),
+                    filter.operator.getFilterOperator(), queryValue(filter)));
+        }
+        if (predicates.size() == 1) {
+            query.setFilter(predicates.get(0));
+        } else if (predicates.size() > 1) {
+            query.setFilter(CompositeFilterOperator.and(predicates));
+        }
         LOG.info(query.toString());
         return query;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the FetchOptions of a single page of getProjectionQuery(), starting at pageToken
+     * if specified.
+     *
+     * @return FetchOptions limited to the page size.
+     * @throws IllegalArgumentException when pageToken is not a valid cursor.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public FetchOptions getFetchOptions() {
+        int pageSize = getEffectivePageSize();
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize).prefetchSize(pageSize);
+        if (pageToken != null && !pageToken.isEmpty()) {
+            fetchOptions.startCursor(Cursor.fromWebSafeString(pageToken));
+        }
+        return fetchOptions;
+    }
+
+    /**
+     * Returns the values of the properties with an equality filter, which every result has.
+     *
+     * Multi-valued properties are left out, their other values are unknown.
+     *
+     * @return the filter values by property name.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Map<String, Object> getEqualityValues() {
+        Map<String, Object> equalityValues = new HashMap<>();
+        for (Filter filter : this.filters) {
+            if (filter.operator == Operator.EQ && filter.field != Field.TOPIC) {
+                equalityValues.put(filter.field.getFieldName(), queryValue(filter));
+            }
+        }
+        return equalityValues;
+    }
+
+    /**
+     * Returns the filter value converted to the type of the field.
+     */
+    private static Object queryValue(Filter filter) {
+        switch (filter.field.fieldType) {
+            case INTEGER:
+                return parseInteger(filter.value);
+            case DATE:
+                return parseDate(filter.value);
+            default:
+                return filter.value;
+        }
+    }
+
+    /**
+     * Parses the value of an INTEGER field.
+     *
+     * @param value A decimal integer, surrounding whitespace is ignored.
+     * @return the integer.
+     * @throws IllegalArgumentException when the value is not an integer.
+     */
+    private static int parseInteger(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an integer: " + value);
+        }
+    }
+
+    /**
+     * Parses the value of a DATE field.
+     *
+     * @param value An ISO 8601 date, optionally with a time and a time zone.
+     * @return the Date.
+     * @throws IllegalArgumentException when the value is not in one of DATE_PATTERNS.
+     */
+    private static Date parseDate(String value) {
+        String trimmed = value.trim();
+        for (String pattern : DATE_PATTERNS) {
+            // SimpleDateFormat isn't thread-safe, so it's created per call.
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ENGLISH);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(trimmed, position);
+            if (date != null && position.getIndex() == trimmed.length()) {
+                return date;
+            }
+        }
+        throw new IllegalArgumentException("Not an ISO 8601 date: " + value);
+    }
+}
@@ -0,0 +1,22 @@
+package com.appspot.yourlittleone.form;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing a bulk registration sent from the client.
+ */
+public final class RegistrationForm {
+    /**
+     * The websafe keys of the activities to register for.
+     */
+    private List<String> websafeActivityKeys;
+
+    private RegistrationForm() {}
+
+    public List<String> getWebsafeActivityKeys() {
+        return websafeActivityKeys == null
+                ? ImmutableList.<String>of() : ImmutableList.copyOf(websafeActivityKeys);
+    }
+}
@@ -0,0 +1,205 @@
+package com.appspot.yourlittleone.service;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.Constants;
+import com.appspot.yourlittleone.domain.Activity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A memcache-backed read-through cache for Activity, keyed by the websafe Activity key.
+ *
+ * Activities are stored as datastore Entities, so the domain class doesn't have to be
+ * Serializable. Writers must call invalidate after their transaction commits.
+ */
+public final class ActivityCache {
+
+    private static final String KEY_PREFIX = "Activity:";
+
+    private static final String ETAG_KEY_PREFIX = "ActivityEtag:";
+
+    /**
+     * How long a deleted entry can't be re-added, so that a reader which loaded the Activity
+     * before the write committed can't put the stale copy back.
+     */
+    private static final long INVALIDATION_LOCK_MILLIS = 2000;
+
+    private static final int EXPIRATION_SECONDS =
+            Integer.getInteger(Constants.ACTIVITY_CACHE_EXPIRATION_PROPERTY, 300);
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService();
+
+    /**
+     * The ETag of a sharded Activity includes the sum of its shards, so it's kept as short as
+     * that sum in SeatAllocator.
+     */
+    private static final int SHARDED_ETAG_EXPIRATION_SECONDS = 10;
+
+    private static final CacheStats STATS = new CacheStats("Activity");
+
+    private static final CacheStats ETAG_STATS = new CacheStats("ActivityEtag");
+
+    private ActivityCache() {}
+
+    /**
+     * Returns the Activity with the given key, from memcache if possible.
+     *
+     * @param activityKey The key of the Activity.
+     * @return the Activity, or null if there is no Activity with the key.
+     */
+    public static Activity get(Key<Activity> activityKey) {
+        String cacheKey = cacheKey(activityKey);
+        Object cached = MEMCACHE.get(cacheKey);
+        if (cached instanceof Entity) {
+            STATS.hit();
+            return ofy().load().fromEntity((Entity) cached);
+        }
+        STATS.miss();
+        Activity activity = ofy().load().key(activityKey).now();
+        if (activity != null) {
+            MEMCACHE.put(cacheKey, ofy().save().toEntity(activity),
+                    Expiration.byDeltaSeconds(EXPIRATION_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        return activity;
+    }
+
+    /**
+     * Returns the cached ETag of the Activity, without loading the Activity.
+     *
+     * @param activityKey The key of the Activity.
+     * @return the ETag last returned for the Activity, or null if it isn't cached.
+     */
+    public static String getEtag(Key<Activity> activityKey) {
+        Object cached = MEMCACHE.get(etagCacheKey(activityKey));
+        if (cached instanceof String) {
+            ETAG_STATS.hit();
+            return (String) cached;
+        }
+        ETAG_STATS.miss();
+        return null;
+    }
+
+    /**
+     * Returns the cached ETags of the Activities with a single memcache call.
+     *
+     * @param activityKeys The keys of the Activities.
+     * @return the cached ETags by Activity key, without the Activities whose ETag isn't cached.
+     */
+    public static Map<Key<Activity>, String> getEtags(Collection<Key<Activity>> activityKeys) {
+        Map<String, Key<Activity>> cacheKeys = new HashMap<>();
+        for (Key<Activity> activityKey : activityKeys) {
+            cacheKeys.put(etagCacheKey(activityKey), activityKey);
+        }
+        Map<String, Object> cached = MEMCACHE.getAll(cacheKeys.keySet());
+        Map<Key<Activity>, String> etags = new HashMap<>();
+        for (Map.Entry<String, Key<Activity>> entry : cacheKeys.entrySet()) {
+            Object etag = cached.get(entry.getKey());
+            if (etag instanceof String) {
+                ETAG_STATS.hit();
+                etags.put(entry.getValue(), (String) etag);
+            } else {
+                ETAG_STATS.miss();
+            }
+        }
+        return etags;
+    }
+
+    /**
+     * Caches the ETag of the Activity. Sharded Activities must have their seatsAvailable
+     * attached first.
+     *
+     * @param activity The Activity about to be returned to the client.
+     */
+    public static void putEtag(Activity activity) {
+        int expirationSeconds = activity.isSeatSharded()
+                ? SHARDED_ETAG_EXPIRATION_SECONDS : EXPIRATION_SECONDS;
+        MEMCACHE.put(etagCacheKey(activity.getKey()), activity.getEtag(),
+                Expiration.byDeltaSeconds(expirationSeconds), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    /**
+     * Caches the ETags of the Activities with at most two memcache calls.
+     *
+     * @param activities The Activities about to be returned to the client.
+     */
+    public static void putEtags(Collection<Activity> activities) {
+        Map<String, String> etags = new HashMap<>();
+        Map<String, String> shardedEtags = new HashMap<>();
+        for (Activity activity : activities) {
+            (activity.isSeatSharded() ? shardedEtags : etags)
+                    .put(etagCacheKey(activity.getKey()), activity.getEtag());
+        }
+        if (!etags.isEmpty()) {
+            MEMCACHE.putAll(etags, Expiration.byDeltaSeconds(EXPIRATION_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        if (!shardedEtags.isEmpty()) {
+            MEMCACHE.putAll(shardedEtags, Expiration.byDeltaSeconds(SHARDED_ETAG_EXPIRATION_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+    }
+
+    /**
+     * Removes the cached copy and the cached ETag of the Activity. Call this after the
+     * transaction modifying the Activity has committed.
+     *
+     * @param activityKey The key of the modified Activity.
+     */
+    public static void invalidate(Key<Activity> activityKey) {
+        MEMCACHE.deleteAll(Arrays.asList(cacheKey(activityKey), etagCacheKey(activityKey)),
+                INVALIDATION_LOCK_MILLIS);
+    }
+
+    /**
+     * Removes the cached ETag of the Activity only. Call this after the transaction modifying
+     * the SeatShards of the Activity has committed.
+     *
+     * @param activityKey The key of the Activity whose shards were modified.
+     */
+    public static void invalidateEtag(Key<Activity> activityKey) {
+        MEMCACHE.delete(etagCacheKey(activityKey), INVALIDATION_LOCK_MILLIS);
+    }
+
+    /**
+     * Removes the cached ETags of the Activities with a single memcache call. Call this after
+     * the organizer's Profile has changed its displayName.
+     *
+     * @param activityKeys The keys of the Activities of the organizer.
+     */
+    public static void invalidateEtags(Collection<Key<Activity>> activityKeys) {
+        List<String> cacheKeys = new ArrayList<>(activityKeys.size());
+        for (Key<Activity> activityKey : activityKeys) {
+            cacheKeys.add(etagCacheKey(activityKey));
+        }
+        MEMCACHE.deleteAll(cacheKeys, INVALIDATION_LOCK_MILLIS);
+    }
+
+    public static CacheStats getStats() {
+        return STATS;
+    }
+
+    public static CacheStats getEtagStats() {
+        return ETAG_STATS;
+    }
+
+    private static String cacheKey(Key<Activity> activityKey) {
+        // Normalize the websafe key, clients may send it in a different form.
+        return KEY_PREFIX + activityKey.getString();
+    }
+
+    private static String etagCacheKey(Key<Activity> activityKey) {
+        return ETAG_KEY_PREFIX + activityKey.getString();
+    }
+}
@@ -0,0 +1,147 @@
+package com.appspot.yourlittleone.service;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.google.appengine.api.search.Cursor;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.MatchScorer;
+import com.google.appengine.api.search.PutException;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.api.search.SortOptions;
+import com.google.common.base.Joiner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Full-text search over the name, description and topics of Activities, backed by the App
+ * Engine Search API.
+ *
+ * Each Activity is a document whose id is its websafe key. Documents are put after the
+ * Activity is saved, so a failed put only delays search results; reindexing repairs it.
+ */
+public final class ActivitySearch {
+
+    private static final Logger LOG = Logger.getLogger(ActivitySearch.class.getName());
+
+    private static final String INDEX_NAME = "activities";
+
+    /**
+     * The maximum number of documents the Search API accepts in a single put.
+     */
+    public static final int MAX_BATCH_PUT = 200;
+
+    /**
+     * The number of matches ranked by relevance, beyond which results are unordered.
+     */
+    private static final int SORT_LIMIT = 1000;
+
+    private static final Index INDEX = SearchServiceFactory.getSearchService()
+            .getIndex(IndexSpec.newBuilder().setName(INDEX_NAME));
+
+    private ActivitySearch() {}
+
+    /**
+     * Adds or replaces the documents of the given Activities.
+     *
+     * @param activities Activities just saved.
+     */
+    public static void index(Collection<Activity> activities) {
+        List<Document> documents = new ArrayList<>(Math.min(activities.size(), MAX_BATCH_PUT));
+        for (Activity activity : activities) {
+            documents.add(toDocument(activity));
+            if (documents.size() == MAX_BATCH_PUT) {
+                put(documents);
+                documents.clear();
+            }
+        }
+        if (!documents.isEmpty()) {
+            put(documents);
+        }
+    }
+
+    private static void put(List<Document> documents) {
+        try {
+            INDEX.put(documents);
+        } catch (PutException e) {
+            LOG.log(Level.WARNING, "Failed to index " + documents.size() + " activities", e);
+        }
+    }
+
+    private static Document toDocument(Activity activity) {
+        Document.Builder builder = Document.newBuilder()
+                .setId(activity.getWebsafeKey())
+                .addField(Field.newBuilder().setName("name").setText(activity.getName()));
+        if (activity.getDescription() != null) {
+            builder.addField(Field.newBuilder().setName("description")
+                    .setText(activity.getDescription()));
+        }
+        List<String> topics = activity.getTopics();
+        if (topics != null && !topics.isEmpty()) {
+            builder.addField(Field.newBuilder().setName("topics")
+                    .setText(Joiner.on(' ').join(topics)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a page of the Activities matching all words of the given text, most relevant
+     * first.
+     *
+     * @param text The words to search for. Search operators in it are ignored.
+     * @param pageSize The maximum number of Activities in the page.
+     * @param pageToken The nextPageToken of the previous page, or null for the first page.
+     * @return a QueryResultCache.Page of websafe Activity keys.
+     */
+    public static QueryResultCache.Page search(String text, int pageSize, String pageToken) {
+        String queryString = toQueryString(text);
+        if (queryString.isEmpty()) {
+            return new QueryResultCache.Page(new ArrayList<String>(0), null);
+        }
+        Cursor cursor = pageToken == null || pageToken.isEmpty()
+                ? Cursor.newBuilder().build() : Cursor.newBuilder().build(pageToken);
+        QueryOptions options = QueryOptions.newBuilder()
+                .setLimit(pageSize)
+                .setCursor(cursor)
+                .setReturningIdsOnly(true)
+                .setSortOptions(SortOptions.newBuilder()
+                        .setMatchScorer(MatchScorer.newBuilder())
+                        .setLimit(SORT_LIMIT))
+                .build();
+        Results<ScoredDocument> results =
+                INDEX.search(Query.newBuilder().setOptions(options).build(queryString));
+        List<String> websafeKeys = new ArrayList<>(pageSize);
+        for (ScoredDocument document : results) {
+            websafeKeys.add(document.getId());
+        }
+        Cursor nextCursor = results.getCursor();
+        return new QueryResultCache.Page(websafeKeys,
+                nextCursor == null ? null : nextCursor.toWebSafeString());
+    }
+
+    /**
+     * Turns user input into a query matching every word, by quoting each of them.
+     */
+    private static String toQueryString(String text) {
+        if (text == null) {
+            return "";
+        }
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add('"' + word + '"');
+            }
+        }
+        return Joiner.on(' ').join(words);
+    }
+}
@@ -0,0 +1,72 @@
+package com.appspot.yourlittleone.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit and miss counters of a cache, kept per instance.
+ */
+public final class CacheStats {
+
+    /**
+     * All CacheStats created on this instance, for reporting.
+     */
+    private static final List<CacheStats> ALL = new CopyOnWriteArrayList<>();
+
+    private final String name;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public CacheStats(String name) {
+        this.name = name;
+        ALL.add(this);
+    }
+
+    /**
+     * Returns the CacheStats of all caches on this instance.
+     * @return an unmodifiable list of CacheStats.
+     */
+    public static List<CacheStats> all() {
+        return Collections.unmodifiableList(ALL);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ratio of hits to all lookups.
+     * @return the hit rate between 0 and 1, or 0 when there has been no lookup yet.
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: hits=%d, misses=%d, hitRate=%.3f",
+                name, getHits(), getMisses(), getHitRate());
+    }
+}
@@ -0,0 +1,108 @@
+package com.appspot.yourlittleone.service;
+
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends confirmation e-mails queued on the confirmation-email pull queue.
+ *
+ * Producers add tasks built by newTask, and a cron job leases them in batches. All mails go
+ * through a single mail Session.
+ */
+public final class ConfirmationMailer {
+
+    /**
+     * The pull queue holding confirmation e-mails, defined in queue.xml.
+     */
+    public static final String QUEUE_NAME = "confirmation-email";
+
+    public static final String PARAM_EMAIL = "email";
+
+    public static final String PARAM_DEDUPE_KEY = "dedupeKey";
+
+    public static final String PARAM_SUBJECT = "subject";
+
+    public static final String PARAM_BODY = "body";
+
+    private static final Session SESSION = Session.getDefaultInstance(new Properties(), null);
+
+    private static final AtomicLong SENT = new AtomicLong();
+
+    private static final AtomicLong FAILED = new AtomicLong();
+
+    private static final AtomicLong DEAD_LETTERED = new AtomicLong();
+
+    private ConfirmationMailer() {}
+
+    /**
+     * Builds a pull task for a confirmation e-mail.
+     *
+     * @param email The recipient.
+     * @param dedupeKey Identifies what the mail confirms, e.g. the websafe Activity key. Tasks
+     *     with the same recipient and dedupeKey in a batch are sent only once.
+     * @param subject The subject of the mail.
+     * @param body The text of the mail.
+     * @return TaskOptions to add to the confirmation-email queue.
+     */
+    public static TaskOptions newTask(String email, String dedupeKey, String subject, String body) {
+        return TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param(PARAM_EMAIL, email)
+                .param(PARAM_DEDUPE_KEY, dedupeKey)
+                .param(PARAM_SUBJECT, subject)
+                .param(PARAM_BODY, body);
+    }
+
+    /**
+     * Sends a mail through the shared Session.
+     *
+     * @param email The recipient.
+     * @param subject The subject of the mail.
+     * @param body The text of the mail.
+     * @throws MessagingException when the mail can't be sent.
+     * @throws UnsupportedEncodingException when the sender name can't be encoded.
+     */
+    public static void send(String email, String subject, String body)
+            throws MessagingException, UnsupportedEncodingException {
+        Message message = new MimeMessage(SESSION);
+        InternetAddress from = new InternetAddress(
+                String.format("noreply@%s.appspotmail.com",
+                        SystemProperty.applicationId.get()), "Your Little One");
+        message.setFrom(from);
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(email, ""));
+        message.setSubject(subject);
+        message.setText(body);
+        Transport.send(message);
+    }
+
+    public static void recordSent() {
+        SENT.incrementAndGet();
+    }
+
+    public static void recordFailed() {
+        FAILED.incrementAndGet();
+    }
+
+    public static void recordDeadLettered() {
+        DEAD_LETTERED.incrementAndGet();
+    }
+
+    /**
+     * Returns the counters of this instance since it started.
+     * @return a summary of sent, failed and dead-lettered mails.
+     */
+    public static String getStats() {
+        return String.format("sent=%d, failed=%d, deadLettered=%d",
+                SENT.get(), FAILED.get(), DEAD_LETTERED.get());
+    }
+}
@@ -0,0 +1,258 @@
+package com.appspot.yourlittleone.service;
+
+import com.google.api.server.spi.config.ApiMethod;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and RPC counters of an Endpoints method, kept per instance.
+ *
+ * Every call records its latency. Sampled calls also count their datastore and memcache RPCs,
+ * so the RPC figures are averages per sampled call. All counters are lock-free.
+ */
+public final class EndpointMetrics {
+
+    /**
+     * Upper bounds of the latency histogram buckets, in milliseconds. The last bucket holds
+     * everything slower.
+     */
+    private static final long[] LATENCY_BOUNDS_MILLIS =
+            {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * All EndpointMetrics created on this instance, by method name.
+     */
+    private static final ConcurrentMap<String, EndpointMetrics> ALL = new ConcurrentHashMap<>();
+
+    /**
+     * The name the calls of unknown methods are counted under.
+     */
+    public static final String OTHER = "other";
+
+    /**
+     * The names of the methods registered with registerApi. The method name comes from the
+     * request path, so other names are bucketed as OTHER rather than growing ALL without bound.
+     */
+    private static final Set<String> KNOWN_METHODS =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The metrics of the sampled call running on the current thread, if any.
+     */
+    private static final ThreadLocal<EndpointMetrics> SAMPLED = new ThreadLocal<>();
+
+    private final String name;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLongArray latencyHistogram =
+            new AtomicLongArray(LATENCY_BOUNDS_MILLIS.length + 1);
+
+    private final AtomicLong sampledCalls = new AtomicLong();
+
+    private final AtomicLong datastoreGets = new AtomicLong();
+
+    private final AtomicLong datastorePuts = new AtomicLong();
+
+    private final AtomicLong datastoreQueries = new AtomicLong();
+
+    private final AtomicLong memcacheLookups = new AtomicLong();
+
+    private final AtomicLong memcacheHits = new AtomicLong();
+
+    private EndpointMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Registers the Endpoints methods of an API class, those annotated with ApiMethod.
+     *
+     * @param api The API class.
+     */
+    public static void registerApi(Class<?> api) {
+        for (Method method : api.getMethods()) {
+            if (method.isAnnotationPresent(ApiMethod.class)) {
+                KNOWN_METHODS.add(method.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics of the given method, creating them on the first call.
+     *
+     * @param name The name of the Endpoints method.
+     * @return the EndpointMetrics of the method, or those of OTHER when it isn't registered.
+     */
+    public static EndpointMetrics forMethod(String name) {
+        if (!KNOWN_METHODS.contains(name)) {
+            name = OTHER;
+        }
+        EndpointMetrics metrics = ALL.get(name);
+        if (metrics == null) {
+            EndpointMetrics created = new EndpointMetrics(name);
+            metrics = ALL.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the EndpointMetrics of all methods called on this instance.
+     * @return a list of EndpointMetrics sorted by method name.
+     */
+    public static List<EndpointMetrics> all() {
+        return new ArrayList<>(new TreeMap<>(ALL).values());
+    }
+
+    /**
+     * Returns the metrics of the sampled call running on the current thread.
+     * @return the EndpointMetrics to count RPCs on, or null when the call isn't sampled.
+     */
+    public static EndpointMetrics sampled() {
+        return SAMPLED.get();
+    }
+
+    /**
+     * Starts counting the RPCs of the current thread on these metrics.
+     */
+    public void startSampling() {
+        sampledCalls.incrementAndGet();
+        SAMPLED.set(this);
+    }
+
+    /**
+     * Stops counting the RPCs of the current thread.
+     */
+    public static void stopSampling() {
+        SAMPLED.remove();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a finished call.
+     *
+     * @param nanos The latency of the call in nanoseconds.
+     */
+    public void recordLatency(long nanos) {
+        calls.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MILLIS.length && millis >= LATENCY_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram.incrementAndGet(bucket);
+    }
+
+    public void datastoreGet() {
+        datastoreGets.incrementAndGet();
+    }
+
+    public void datastorePut() {
+        datastorePuts.incrementAndGet();
+    }
+
+    public void datastoreQuery() {
+        datastoreQueries.incrementAndGet();
+    }
+
+    /**
+     * Records a memcache get of one or more keys.
+     *
+     * @param lookups The number of keys looked up.
+     * @param hits The number of keys found.
+     */
+    public void memcacheGet(int lookups, int hits) {
+        memcacheLookups.addAndGet(lookups);
+        memcacheHits.addAndGet(hits);
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket holding the given percentile.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return the latency in milliseconds, Long.MAX_VALUE when it's beyond the last bound, or 0
+     *     when there has been no call yet.
+     */
+    public long getLatencyPercentileMillis(int percentile) {
+        long[] counts = new long[latencyHistogram.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyHistogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (total * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return LATENCY_BOUNDS_MILLIS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the latency histogram, keyed by the upper bound of each bucket in milliseconds.
+     * @return the call count of each bucket, Long.MAX_VALUE keying the last one.
+     */
+    public Map<Long, Long> getLatencyHistogram() {
+        Map<Long, Long> histogram = new TreeMap<>();
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            histogram.put(i < LATENCY_BOUNDS_MILLIS.length ? LATENCY_BOUNDS_MILLIS[i] : Long.MAX_VALUE,
+                    latencyHistogram.get(i));
+        }
+        return histogram;
+    }
+
+    private static double perCall(AtomicLong counter, long calls) {
+        return calls == 0 ? 0 : (double) counter.get() / calls;
+    }
+
+    private static String bound(long millis) {
+        if (millis == 0) {
+            return "-";
+        }
+        return millis == Long.MAX_VALUE
+                ? ">" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1] : "<" + millis;
+    }
+
+    @Override
+    public String toString() {
+        long calls = getCalls();
+        long sampled = sampledCalls.get();
+        long lookups = memcacheLookups.get();
+        return String.format("%s: calls=%d, meanMs=%.1f, p50Ms=%s, p99Ms=%s, sampled=%d,"
+                        + " gets/call=%.2f, puts/call=%.2f, queries/call=%.2f,"
+                        + " memcacheHitRate=%.3f",
+                name, calls, calls == 0 ? 0 : totalNanos.get() / 1e6 / calls,
+                bound(getLatencyPercentileMillis(50)), bound(getLatencyPercentileMillis(99)),
+                sampled, perCall(datastoreGets, sampled), perCall(datastorePuts, sampled),
+                perCall(datastoreQueries, sampled),
+                lookups == 0 ? 0 : (double) memcacheHits.get() / lookups);
+    }
+}
@@ -0,0 +1,109 @@
+package com.appspot.yourlittleone.service;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The smallest and largest values of indexed numeric and date properties, used to estimate how
+ * selective a range filter is.
+ *
+ * Each range costs two single-row projection queries, and is cached in memcache for an hour,
+ * so it trails the data a little; that's good enough for an estimate.
+ */
+public final class FieldStatistics {
+
+    private static final String MEMCACHE_KEY_PREFIX = "FIELD_STATISTICS:";
+
+    private static final int EXPIRATION_SECONDS = 3600;
+
+    /**
+     * The smallest and largest value of a property, dates as milliseconds since the epoch.
+     */
+    public static final class Range implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long min;
+
+        private final long max;
+
+        private Range(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Estimates the fraction of values below the given value, assuming they are spread
+         * evenly over the range.
+         *
+         * @param value A value of the property.
+         * @return the fraction between 0 and 1, or 0.5 when the range is a single value.
+         */
+        public double fractionBelow(long value) {
+            if (max <= min) {
+                return 0.5;
+            }
+            return Math.max(0, Math.min(1, (double) (value - min) / (max - min)));
+        }
+    }
+
+    private FieldStatistics() {}
+
+    /**
+     * Returns the range of an indexed property.
+     *
+     * @param kind The kind of the entities.
+     * @param propertyName The name of the indexed property.
+     * @param type Long.class for integer properties, or Date.class.
+     * @return the Range, or null when no entity has the property.
+     */
+    public static Range get(String kind, String propertyName, Class<?> type) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        String memcacheKey = MEMCACHE_KEY_PREFIX + kind + "." + propertyName;
+        Range range = (Range) memcacheService.get(memcacheKey);
+        if (range == null) {
+            Long min = extreme(kind, propertyName, type, Query.SortDirection.ASCENDING);
+            if (min == null) {
+                return null;
+            }
+            Long max = extreme(kind, propertyName, type, Query.SortDirection.DESCENDING);
+            range = new Range(min, max == null ? min : max);
+            memcacheService.put(memcacheKey, range,
+                    Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+        }
+        return range;
+    }
+
+    private static Long extreme(String kind, String propertyName, Class<?> type,
+                                Query.SortDirection direction) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Query query = new Query(kind)
+                .addProjection(new PropertyProjection(propertyName, type))
+                .addSort(propertyName, direction);
+        List<Entity> entities = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+        if (entities.isEmpty()) {
+            return null;
+        }
+        Object value = entities.get(0).getProperty(propertyName);
+        return value instanceof Date ? ((Date) value).getTime() : ((Number) value).longValue();
+    }
+}
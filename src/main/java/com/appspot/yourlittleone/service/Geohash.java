@@ -0,0 +1,194 @@
+package com.appspot.yourlittleone.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Geohash encoding and the cell coverings used by proximity queries.
+ *
+ * A geohash interleaves longitude and latitude bits, five per base32 character, so each prefix
+ * of a geohash is a larger cell containing it. Entities store their prefixes at several
+ * precisions, and a proximity query looks up the few cells covering its circle.
+ */
+public final class Geohash {
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    /**
+     * The shortest prefix stored, with cells of about 630 x 1250 km.
+     */
+    public static final int MIN_PRECISION = 2;
+
+    /**
+     * The longest prefix stored, with cells of about 150 x 150 m.
+     */
+    public static final int MAX_PRECISION = 7;
+
+    /**
+     * The largest radius a proximity query covers. The cells of MIN_PRECISION cover it up to
+     * about 70 degrees of latitude, and smaller radii further toward the poles.
+     */
+    public static final double MAX_RADIUS_METERS = 300000;
+
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+
+    private Geohash() {}
+
+    /**
+     * Encodes a point.
+     *
+     * @param latitude The latitude between -90 and 90.
+     * @param longitude The longitude between -180 and 180.
+     * @param precision The number of characters.
+     * @return the geohash of the cell containing the point.
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        StringBuilder geohash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int character = 0;
+        while (geohash.length() < precision) {
+            if (evenBit) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    character = (character << 1) | 1;
+                    minLongitude = middle;
+                } else {
+                    character <<= 1;
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    character = (character << 1) | 1;
+                    minLatitude = middle;
+                } else {
+                    character <<= 1;
+                    maxLatitude = middle;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                geohash.append(BASE32.charAt(character));
+                bit = 0;
+                character = 0;
+            }
+        }
+        return geohash.toString();
+    }
+
+    /**
+     * Returns the geohashes of a point at every stored precision, to be indexed.
+     *
+     * @param latitude The latitude between -90 and 90.
+     * @param longitude The longitude between -180 and 180.
+     * @return the geohashes from MIN_PRECISION to MAX_PRECISION characters.
+     */
+    public static List<String> prefixes(double latitude, double longitude) {
+        String geohash = encode(latitude, longitude, MAX_PRECISION);
+        List<String> prefixes = new ArrayList<>(MAX_PRECISION - MIN_PRECISION + 1);
+        for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+            prefixes.add(geohash.substring(0, precision));
+        }
+        return prefixes;
+    }
+
+    /**
+     * Returns whether the cells returned by cover() contain the whole circle. They don't when
+     * the circle is wider than the cells of MIN_PRECISION, which happens at high latitudes where
+     * the meridians converge, or when the circle reaches a pole.
+     *
+     * @param latitude The latitude of the center.
+     * @param radiusMeters The radius.
+     * @return true if cover() returns every cell intersecting the circle.
+     */
+    public static boolean canCover(double latitude, double radiusMeters) {
+        double radiusLatitude = radiusMeters / METERS_PER_DEGREE_LATITUDE;
+        return cellLatitudeDegrees(MIN_PRECISION) >= radiusLatitude
+                && cellLongitudeDegrees(MIN_PRECISION)
+                        >= radiusLongitudeDegrees(latitude, radiusLatitude);
+    }
+
+    /**
+     * Returns the cells covering a circle: the cell containing the center and its neighbors,
+     * at the finest precision whose cells are at least as large as the radius.
+     *
+     * @param latitude The latitude of the center.
+     * @param longitude The longitude of the center.
+     * @param radiusMeters The radius, at most MAX_RADIUS_METERS.
+     * @return up to 9 geohashes, all of the same precision.
+     */
+    public static Set<String> cover(double latitude, double longitude, double radiusMeters) {
+        double radiusLatitude = radiusMeters / METERS_PER_DEGREE_LATITUDE;
+        double radiusLongitude = radiusLongitudeDegrees(latitude, radiusLatitude);
+        int precision = MIN_PRECISION;
+        while (precision < MAX_PRECISION
+                && cellLatitudeDegrees(precision + 1) >= radiusLatitude
+                && cellLongitudeDegrees(precision + 1) >= radiusLongitude) {
+            precision++;
+        }
+        double cellLatitude = cellLatitudeDegrees(precision);
+        double cellLongitude = cellLongitudeDegrees(precision);
+        Set<String> cells = new LinkedHashSet<>(9);
+        for (int i = -1; i <= 1; i++) {
+            double neighborLatitude = latitude + i * cellLatitude;
+            if (neighborLatitude < -90 || neighborLatitude > 90) {
+                continue;
+            }
+            for (int j = -1; j <= 1; j++) {
+                double neighborLongitude = longitude + j * cellLongitude;
+                // Wraps around the antimeridian.
+                if (neighborLongitude < -180) {
+                    neighborLongitude += 360;
+                } else if (neighborLongitude >= 180) {
+                    neighborLongitude -= 360;
+                }
+                cells.add(encode(neighborLatitude, neighborLongitude, precision));
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the great-circle distance between two points.
+     *
+     * @return the distance in meters.
+     */
+    public static double distanceMeters(double latitude1, double longitude1,
+                                        double latitude2, double longitude2) {
+        double deltaLatitude = Math.toRadians(latitude2 - latitude1);
+        double deltaLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(deltaLatitude / 2) * Math.sin(deltaLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(deltaLongitude / 2) * Math.sin(deltaLongitude / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns the half-width in longitude of a circle, measured at its edge nearest to a pole,
+     * where it is the widest. It is infinite when the circle reaches a pole.
+     */
+    private static double radiusLongitudeDegrees(double latitude, double radiusLatitude) {
+        double poleward = Math.abs(latitude) + radiusLatitude;
+        if (poleward >= 90) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return radiusLatitude / Math.cos(Math.toRadians(poleward));
+    }
+
+    private static double cellLatitudeDegrees(int precision) {
+        return 180 / Math.pow(2, (5 * precision) / 2);
+    }
+
+    private static double cellLongitudeDegrees(int precision) {
+        return 360 / Math.pow(2, (5 * precision + 1) / 2);
+    }
+}
@@ -0,0 +1,57 @@
+package com.appspot.yourlittleone.service;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.domain.IdempotencyRecord;
+import com.googlecode.objectify.Key;
+
+/**
+ * Looks up the IdempotencyRecords of retried mutations.
+ *
+ * Outside a transaction the lookup is served by the Objectify global cache, so a replay costs a
+ * memcache get and doesn't touch the entity group of the user. Inside a transaction it reads the
+ * datastore, which catches a retry racing with the original request.
+ */
+public final class IdempotencyCache {
+
+    private static final CacheStats STATS = new CacheStats("Idempotency");
+
+    private IdempotencyCache() {}
+
+    /**
+     * Returns the outcome recorded for a mutation, before opening its transaction.
+     *
+     * @param recordKey The key of the IdempotencyRecord, or null when the client sent no key.
+     * @return the IdempotencyRecord, or null if the mutation hasn't run or the record expired.
+     */
+    public static IdempotencyRecord get(Key<IdempotencyRecord> recordKey) {
+        if (recordKey == null) {
+            return null;
+        }
+        IdempotencyRecord record = live(ofy().load().key(recordKey).now());
+        if (record != null) {
+            STATS.hit();
+        } else {
+            STATS.miss();
+        }
+        return record;
+    }
+
+    /**
+     * Returns the outcome recorded for a mutation, from within its transaction.
+     *
+     * @param recordKey The key of the IdempotencyRecord, or null when the client sent no key.
+     * @return the IdempotencyRecord, or null if the mutation hasn't run or the record expired.
+     */
+    public static IdempotencyRecord getInTransaction(Key<IdempotencyRecord> recordKey) {
+        return recordKey == null ? null : live(ofy().load().key(recordKey).now());
+    }
+
+    private static IdempotencyRecord live(IdempotencyRecord record) {
+        return record == null || record.isExpired() ? null : record;
+    }
+
+    public static CacheStats getStats() {
+        return STATS;
+    }
+}
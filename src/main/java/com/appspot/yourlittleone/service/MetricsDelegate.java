@@ -0,0 +1,157 @@
+package com.appspot.yourlittleone.service;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts the datastore and memcache RPCs of sampled Endpoints calls on their EndpointMetrics.
+ *
+ * Wraps the ApiProxy delegate the way Appstats does, but only keeps counters. RPCs made outside
+ * a sampled call go straight to the wrapped delegate.
+ */
+public final class MetricsDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+    private static final Logger LOG = Logger.getLogger(MetricsDelegate.class.getName());
+
+    private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+    private MetricsDelegate(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the current ApiProxy delegate, unless it's already wrapped.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void install() {
+        ApiProxy.Delegate<ApiProxy.Environment> current = ApiProxy.getDelegate();
+        if (current != null && !(current instanceof MetricsDelegate)) {
+            ApiProxy.setDelegate(new MetricsDelegate(current));
+        }
+    }
+
+    @Override
+    public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                               String methodName, byte[] request) {
+        EndpointMetrics metrics = EndpointMetrics.sampled();
+        if (metrics != null) {
+            countCall(metrics, packageName, methodName);
+        }
+        byte[] response = delegate.makeSyncCall(environment, packageName, methodName, request);
+        if (metrics != null && isMemcacheGet(packageName, methodName)) {
+            countMemcacheGet(metrics, request, response);
+        }
+        return response;
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                                        String methodName, final byte[] request,
+                                        ApiProxy.ApiConfig apiConfig) {
+        final Future<byte[]> future =
+                delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        final EndpointMetrics metrics = EndpointMetrics.sampled();
+        if (metrics == null) {
+            return future;
+        }
+        countCall(metrics, packageName, methodName);
+        if (!isMemcacheGet(packageName, methodName)) {
+            return future;
+        }
+        // The hits are only known from the response, which may be read from another thread.
+        return new Future<byte[]>() {
+            private volatile boolean counted;
+
+            @Override
+            public byte[] get() throws InterruptedException, ExecutionException {
+                return count(future.get());
+            }
+
+            @Override
+            public byte[] get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                return count(future.get(timeout, unit));
+            }
+
+            private byte[] count(byte[] response) {
+                if (!counted) {
+                    counted = true;
+                    countMemcacheGet(metrics, request, response);
+                }
+                return response;
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return future.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return future.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return future.isDone();
+            }
+        };
+    }
+
+    private static boolean isMemcacheGet(String packageName, String methodName) {
+        return "memcache".equals(packageName) && "Get".equals(methodName);
+    }
+
+    private static void countCall(EndpointMetrics metrics, String packageName, String methodName) {
+        if (!"datastore_v3".equals(packageName)) {
+            return;
+        }
+        switch (methodName) {
+            case "Get":
+                metrics.datastoreGet();
+                break;
+            case "Put":
+                metrics.datastorePut();
+                break;
+            case "RunQuery":
+                metrics.datastoreQuery();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void countMemcacheGet(EndpointMetrics metrics, byte[] request,
+                                         byte[] response) {
+        try {
+            metrics.memcacheGet(MemcacheGetRequest.parseFrom(request).getKeyCount(),
+                    MemcacheGetResponse.parseFrom(response).getItemCount());
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "Can't count a memcache get", e);
+        }
+    }
+
+    @Override
+    public void log(ApiProxy.Environment environment, ApiProxy.LogRecord logRecord) {
+        delegate.log(environment, logRecord);
+    }
+
+    @Override
+    public void flushLogs(ApiProxy.Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+}
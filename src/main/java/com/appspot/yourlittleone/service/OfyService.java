@@ -2,7 +2,10 @@ package com.appspot.yourlittleone.service;
 
 import com.appspot.yourlittleone.domain.AppEngineUser;
 import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.domain.IdempotencyRecord;
 import com.appspot.yourlittleone.domain.Profile;
+import com.appspot.yourlittleone.domain.Registration;
+import com.appspot.yourlittleone.domain.SeatShard;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -18,6 +21,9 @@ public class OfyService {
         factory().register(AppEngineUser.class);
         factory().register(Activity.class);
         factory().register(Profile.class);
+        factory().register(SeatShard.class);
+        factory().register(Registration.class);
+        factory().register(IdempotencyRecord.class);
     }
 
     /**
@@ -0,0 +1,153 @@
+package com.appspot.yourlittleone.service;
+
+import com.appspot.yourlittleone.Constants;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A memcache-backed cache of query results, holding the websafe keys of a page of results, and
+ * the projected entities when the page was read by a projection query.
+ *
+ * Entries are versioned by a generation counter stored in memcache. Writers bump the counter
+ * instead of deleting entries, and the entries of older generations are simply never read again
+ * and expire on their own.
+ */
+public final class QueryResultCache {
+
+    private static final int EXPIRATION_SECONDS =
+            Integer.getInteger(Constants.QUERY_CACHE_EXPIRATION_PROPERTY, 600);
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService();
+
+    /**
+     * A cached page of query results.
+     */
+    public static final class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> websafeKeys;
+
+        /**
+         * The entities returned by a projection query, or null.
+         */
+        private final ArrayList<Entity> projections;
+
+        private final String nextPageToken;
+
+        public Page(List<String> websafeKeys, String nextPageToken) {
+            this(websafeKeys, null, nextPageToken);
+        }
+
+        public Page(List<String> websafeKeys, List<Entity> projections, String nextPageToken) {
+            this.websafeKeys = new ArrayList<>(websafeKeys);
+            this.projections = projections == null ? null : new ArrayList<>(projections);
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<String> getWebsafeKeys() {
+            return websafeKeys;
+        }
+
+        /**
+         * Returns the projected entities of the page, so that a hit doesn't load the entities.
+         *
+         * @return the entities returned by the projection query, or null if it wasn't one.
+         */
+        public List<Entity> getProjections() {
+            return projections;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private final String name;
+
+    private final CacheStats stats;
+
+    public QueryResultCache(String name) {
+        this.name = name;
+        this.stats = new CacheStats(name);
+    }
+
+    /**
+     * Returns the current value of the generation counter, initializing it if needed.
+     *
+     * Read the generation before running the query and use it for both get and put, so that a
+     * page computed while a writer bumped the generation is stored under the old one.
+     *
+     * @param generationKey The memcache key of the generation counter the query depends on.
+     * @return the current generation, or null when memcache is unavailable.
+     */
+    public Long generation(String generationKey) {
+        Object generation = MEMCACHE.get(generationKey);
+        if (generation instanceof Long) {
+            return (Long) generation;
+        }
+        return MEMCACHE.increment(generationKey, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the cached page for the query.
+     *
+     * @param generation The generation returned by generation().
+     * @param queryKey A canonical representation of the query, including its paging parameters.
+     * @return the cached page, or null.
+     */
+    public Page get(Long generation, String queryKey) {
+        if (generation == null) {
+            return null;
+        }
+        Object cached = MEMCACHE.get(cacheKey(generation, queryKey));
+        if (cached instanceof Page) {
+            stats.hit();
+            return (Page) cached;
+        }
+        stats.miss();
+        return null;
+    }
+
+    /**
+     * Caches the page for the query.
+     *
+     * @param generation The generation returned by generation() before running the query.
+     * @param queryKey A canonical representation of the query, including its paging parameters.
+     * @param page The page to cache.
+     */
+    public void put(Long generation, String queryKey, Page page) {
+        if (generation == null) {
+            return;
+        }
+        MEMCACHE.put(cacheKey(generation, queryKey), page,
+                Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Invalidates all entries depending on the generation counter. Call this after the
+     * transaction modifying the queried entities has committed.
+     *
+     * @param generationKey The memcache key of the generation counter.
+     */
+    public static void bumpGeneration(String generationKey) {
+        // Start from the current time, so that a counter evicted from memcache never goes back
+        // to a generation that still has entries.
+        MEMCACHE.increment(generationKey, 1, System.currentTimeMillis());
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    private String cacheKey(long generation, String queryKey) {
+        // Long keys are hashed by the memcache API.
+        return name + ":" + generation + ":" + queryKey;
+    }
+}
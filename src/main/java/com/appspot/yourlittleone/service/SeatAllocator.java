@@ -0,0 +1,201 @@
+package com.appspot.yourlittleone.service;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.domain.ActivitySummary;
+import com.appspot.yourlittleone.domain.SeatShard;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Helpers for Activities whose seats are split across SeatShards.
+ *
+ * The number of seats available on a sharded Activity is the sum of its shards, cached in
+ * memcache for a short while. Writers must call invalidate after their transaction commits.
+ */
+public final class SeatAllocator {
+
+    private static final String KEY_PREFIX = "SeatsAvailable:";
+
+    private static final long INVALIDATION_LOCK_MILLIS = 2000;
+
+    /**
+     * Kept short, the sum is only used for display and the shards are the source of truth.
+     */
+    private static final int EXPIRATION_SECONDS = 10;
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService();
+
+    private static final CacheStats STATS = new CacheStats("SeatsAvailable");
+
+    private SeatAllocator() {}
+
+    /**
+     * Replaces seatsAvailable of the sharded Activities with the sum of their shards.
+     * Activities with unsharded seats are left untouched.
+     *
+     * @param activities Activities about to be returned to the client.
+     */
+    public static void attachSeatsAvailable(Collection<Activity> activities) {
+        Map<Key<Activity>, Integer> seatShards = new HashMap<>();
+        for (Activity activity : activities) {
+            if (activity.isSeatSharded()) {
+                seatShards.put(activity.getKey(), activity.getSeatShards());
+            }
+        }
+        if (seatShards.isEmpty()) {
+            return;
+        }
+        Map<Key<Activity>, Integer> sums = sumSeatsAvailable(seatShards);
+        for (Activity activity : activities) {
+            if (activity.isSeatSharded()) {
+                activity.syncSeatsAvailable(sums.get(activity.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Replaces seatsAvailable of the summaries of sharded Activities with the sum of their
+     * shards.
+     *
+     * @param summaries ActivitySummaries about to be returned to the client.
+     */
+    public static void attachSeatsAvailableToSummaries(Collection<ActivitySummary> summaries) {
+        Map<Key<Activity>, Integer> seatShards = new HashMap<>();
+        for (ActivitySummary summary : summaries) {
+            if (summary.isSeatSharded()) {
+                seatShards.put(summary.getKey(), summary.getSeatShards());
+            }
+        }
+        if (seatShards.isEmpty()) {
+            return;
+        }
+        Map<Key<Activity>, Integer> sums = sumSeatsAvailable(seatShards);
+        for (ActivitySummary summary : summaries) {
+            if (summary.isSeatSharded()) {
+                summary.syncSeatsAvailable(sums.get(summary.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of seats available on the sharded Activities, summing up the shards
+     * of those not in memcache with a single batch get.
+     *
+     * @param seatShards The number of SeatShards of each sharded Activity, by Activity key.
+     * @return the number of seats available by Activity key.
+     */
+    private static Map<Key<Activity>, Integer> sumSeatsAvailable(
+            Map<Key<Activity>, Integer> seatShards) {
+        Map<String, Key<Activity>> cacheKeys = new HashMap<>();
+        for (Key<Activity> activityKey : seatShards.keySet()) {
+            cacheKeys.put(cacheKey(activityKey), activityKey);
+        }
+        Map<String, Object> cached = MEMCACHE.getAll(cacheKeys.keySet());
+        Map<Key<Activity>, Integer> sums = new HashMap<>();
+        List<Key<Activity>> missed = new ArrayList<>();
+        List<Key<SeatShard>> shardKeys = new ArrayList<>();
+        for (Map.Entry<String, Key<Activity>> entry : cacheKeys.entrySet()) {
+            Object seatsAvailable = cached.get(entry.getKey());
+            Key<Activity> activityKey = entry.getValue();
+            if (seatsAvailable instanceof Integer) {
+                STATS.hit();
+                sums.put(activityKey, (Integer) seatsAvailable);
+            } else {
+                STATS.miss();
+                missed.add(activityKey);
+                shardKeys.addAll(SeatShard.keys(activityKey, seatShards.get(activityKey)));
+            }
+        }
+        if (missed.isEmpty()) {
+            return sums;
+        }
+        // Sum up the shards of all missed Activities with a single batch get.
+        Map<Key<SeatShard>, SeatShard> shards = ofy().load().keys(shardKeys);
+        Map<String, Integer> toCache = new HashMap<>();
+        for (Key<Activity> activityKey : missed) {
+            int seatsAvailable = 0;
+            for (Key<SeatShard> shardKey : SeatShard.keys(activityKey, seatShards.get(activityKey))) {
+                SeatShard shard = shards.get(shardKey);
+                if (shard != null) {
+                    seatsAvailable += shard.getSeatsAvailable();
+                }
+            }
+            sums.put(activityKey, seatsAvailable);
+            toCache.put(cacheKey(activityKey), seatsAvailable);
+        }
+        MEMCACHE.putAll(toCache, Expiration.byDeltaSeconds(EXPIRATION_SECONDS),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return sums;
+    }
+
+    /**
+     * Returns the keys of the shards which had free seats when read, in random order.
+     *
+     * The read is not transactional, so callers must check the shard again in their transaction.
+     *
+     * @param activity A sharded Activity.
+     * @return keys of the shards with free seats.
+     */
+    public static List<Key<SeatShard>> shardsWithSeatsAvailable(Activity activity) {
+        return shuffledShards(activity, true);
+    }
+
+    /**
+     * Returns the keys of the shards which had allocated seats when read, in random order.
+     *
+     * The read is not transactional, so callers must check the shard again in their transaction.
+     *
+     * @param activity A sharded Activity.
+     * @return keys of the shards with allocated seats.
+     */
+    public static List<Key<SeatShard>> shardsWithSeatsAllocated(Activity activity) {
+        return shuffledShards(activity, false);
+    }
+
+    /**
+     * Removes the cached number of seats available of the Activity, and its ETag which is
+     * derived from it.
+     *
+     * @param activityKey The key of the Activity whose shards were modified.
+     */
+    public static void invalidate(Key<Activity> activityKey) {
+        MEMCACHE.delete(cacheKey(activityKey), INVALIDATION_LOCK_MILLIS);
+        ActivityCache.invalidateEtag(activityKey);
+    }
+
+    public static CacheStats getStats() {
+        return STATS;
+    }
+
+    private static List<Key<SeatShard>> shuffledShards(Activity activity, boolean withSeatsAvailable) {
+        Collection<SeatShard> shards = ofy().load()
+                .keys(SeatShard.keys(activity.getKey(), activity.getSeatShards())).values();
+        List<Key<SeatShard>> candidates = new ArrayList<>(shards.size());
+        for (SeatShard shard : shards) {
+            int seats = withSeatsAvailable ? shard.getSeatsAvailable() : shard.getSeatsAllocated();
+            if (seats > 0) {
+                candidates.add(Key.create(shard));
+            }
+        }
+        // Spread concurrent registrations over the shards.
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        return candidates;
+    }
+
+    private static String cacheKey(Key<Activity> activityKey) {
+        return KEY_PREFIX + activityKey.getString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.appspot.yourlittleone.service;
+
+import com.appspot.yourlittleone.Constants;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+
+/**
+ * Caches the App Engine userId of users whose User object comes without one (Android clients).
+ *
+ * Lookups first check a memo holding the last User seen on the current thread, which covers
+ * repeated lookups within a request since the endpoints create a new User per request, and then
+ * a memcache entry keyed by e-mail.
+ */
+public final class UserIdCache {
+
+    private static final String KEY_PREFIX = "UserId:";
+
+    private static final int EXPIRATION_SECONDS =
+            Integer.getInteger(Constants.USER_ID_CACHE_EXPIRATION_PROPERTY, 86400);
+
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService();
+
+    private static final CacheStats STATS = new CacheStats("UserId");
+
+    private static final ThreadLocal<Memo> MEMO = new ThreadLocal<>();
+
+    /**
+     * The userId resolved for a User object.
+     */
+    private static final class Memo {
+
+        private final User user;
+
+        private final String userId;
+
+        private Memo(User user, String userId) {
+            this.user = user;
+            this.userId = userId;
+        }
+    }
+
+    private UserIdCache() {}
+
+    /**
+     * Returns the cached userId of the user.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @return the userId, or null if it isn't cached.
+     */
+    public static String get(User user) {
+        Memo memo = MEMO.get();
+        if (memo != null && memo.user == user) {
+            STATS.hit();
+            return memo.userId;
+        }
+        Object userId = MEMCACHE.get(KEY_PREFIX + user.getEmail());
+        if (userId instanceof String) {
+            STATS.hit();
+            MEMO.set(new Memo(user, (String) userId));
+            return (String) userId;
+        }
+        STATS.miss();
+        return null;
+    }
+
+    /**
+     * Caches the userId resolved for the user.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @param userId The App Engine userId of the user.
+     */
+    public static void put(User user, String userId) {
+        MEMO.set(new Memo(user, userId));
+        MEMCACHE.put(KEY_PREFIX + user.getEmail(), userId,
+                Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    public static CacheStats getStats() {
+        return STATS;
+    }
+}
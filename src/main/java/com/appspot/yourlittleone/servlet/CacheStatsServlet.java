@@ -0,0 +1,46 @@
+package com.appspot.yourlittleone.servlet;
+
+import static com.appspot.yourlittleone.service.OfyService.factory;
+
+import com.appspot.yourlittleone.service.CacheStats;
+import com.appspot.yourlittleone.service.ConfirmationMailer;
+import com.googlecode.objectify.impl.EntityMemcacheStats.Stat;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet reporting the cache and mail statistics of this instance, for admins only.
+ */
+public class CacheStatsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        // Every miss of the Objectify global cache falls through to the datastore.
+        writer.println("Objectify global cache (misses fall through to the datastore):");
+        Map<String, Stat> entityStats = new TreeMap<>(factory().getMemcacheStats().getStats());
+        for (Map.Entry<String, Stat> entry : entityStats.entrySet()) {
+            Stat stat = entry.getValue();
+            writer.println(String.format("  %s: hits=%d, misses=%d, hitRate=%.3f",
+                    entry.getKey(), stat.getHits(), stat.getMisses(), stat.getPercent()));
+        }
+        writer.println("Application caches:");
+        for (CacheStats stats : CacheStats.all()) {
+            writer.println("  " + stats);
+        }
+        writer.println("Confirmation e-mails: " + ConfirmationMailer.getStats());
+    }
+}
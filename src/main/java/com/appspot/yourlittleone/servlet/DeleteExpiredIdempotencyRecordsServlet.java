@@ -0,0 +1,56 @@
+package com.appspot.yourlittleone.servlet;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.domain.IdempotencyRecord;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet deleting expired IdempotencyRecords, invoked by cron.
+ *
+ * Expired records are never replayed, so deleting them only keeps the datastore small.
+ */
+public class DeleteExpiredIdempotencyRecordsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The maximum number of records deleted per batch.
+     */
+    private static final int MAX_BATCH_DELETE = 500;
+
+    /**
+     * The maximum number of batches per request, the rest is deleted by the next run.
+     */
+    private static final int MAX_BATCHES = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Date now = new Date();
+        for (int batch = 0; batch < MAX_BATCHES; batch++) {
+            List<Key<IdempotencyRecord>> keys = ofy().load().type(IdempotencyRecord.class)
+                    .filter("expires <", now)
+                    .limit(MAX_BATCH_DELETE)
+                    .keys()
+                    .list();
+            if (keys.isEmpty()) {
+                break;
+            }
+            ofy().delete().keys(keys).now();
+            if (keys.size() < MAX_BATCH_DELETE) {
+                break;
+            }
+        }
+        response.setStatus(204);
+    }
+}
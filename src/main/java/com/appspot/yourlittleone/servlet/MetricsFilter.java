@@ -0,0 +1,63 @@
+package com.appspot.yourlittleone.servlet;
+
+import com.appspot.yourlittleone.service.EndpointMetrics;
+import com.appspot.yourlittleone.service.MetricsDelegate;
+import com.appspot.yourlittleone.spi.ActivityApi;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Records latency and RPC metrics of each Endpoints method, a low-overhead replacement for
+ * Appstats. Mapped onto /_ah/spi/*, where the path ends with the method name.
+ *
+ * The init-param sampleRate, between 0 and 1, is the fraction of calls whose datastore and
+ * memcache RPCs are counted. Latency is recorded for every call. Paths not naming a method of
+ * ActivityApi are counted together, see EndpointMetrics.OTHER.
+ */
+public class MetricsFilter implements Filter {
+
+    private double sampleRate = 1;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String sampleRate = filterConfig.getInitParameter("sampleRate");
+        if (sampleRate != null) {
+            this.sampleRate = Double.parseDouble(sampleRate);
+        }
+        EndpointMetrics.registerApi(ActivityApi.class);
+        MetricsDelegate.install();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        String path = ((HttpServletRequest) request).getRequestURI();
+        EndpointMetrics metrics = EndpointMetrics.forMethod(
+                path.substring(Math.max(path.lastIndexOf('.'), path.lastIndexOf('/')) + 1));
+        boolean sampled = sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+        if (sampled) {
+            metrics.startSampling();
+        }
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            metrics.recordLatency(System.nanoTime() - start);
+            if (sampled) {
+                EndpointMetrics.stopSampling();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {}
+}
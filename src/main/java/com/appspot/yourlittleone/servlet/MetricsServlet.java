@@ -0,0 +1,40 @@
+package com.appspot.yourlittleone.servlet;
+
+import com.appspot.yourlittleone.service.EndpointMetrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet reporting the Endpoints metrics of this instance, for admins only.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (EndpointMetrics metrics : EndpointMetrics.all()) {
+            writer.println(metrics);
+            StringBuilder histogram = new StringBuilder("  latency histogram:");
+            for (Map.Entry<Long, Long> bucket : metrics.getLatencyHistogram().entrySet()) {
+                if (bucket.getValue() > 0) {
+                    histogram.append(bucket.getKey() == Long.MAX_VALUE
+                            ? " rest" : " <" + bucket.getKey() + "ms")
+                            .append('=').append(bucket.getValue());
+                }
+            }
+            writer.println(histogram);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.appspot.yourlittleone.servlet;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.domain.Profile;
+import com.appspot.yourlittleone.domain.Registration;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet moving the registrations still stored inline on Profiles into Registration entities,
+ * for admins only.
+ *
+ * Profiles are otherwise only migrated when their user registers or lists the Activities to
+ * attend, and until then getAttendees doesn't list them. The inline keys aren't indexed, so all
+ * Profiles are scanned. Works in batches until the time budget of the request runs out, then
+ * prints the URL that continues from where it stopped.
+ */
+public class MigrateRegistrationsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of Profiles read per query.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * Leaves room for the last batch within the 60 seconds request deadline.
+     */
+    private static final long TIME_BUDGET_NANOS = TimeUnit.SECONDS.toNanos(45);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        String cursor = request.getParameter("cursor");
+        int scanned = 0;
+        int migrated = 0;
+        boolean done = false;
+        while (!done && System.nanoTime() - start < TIME_BUDGET_NANOS) {
+            Query<Profile> query = ofy().load().type(Profile.class).limit(BATCH_SIZE);
+            if (cursor != null && !cursor.isEmpty()) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            QueryResultIterator<Profile> iterator = query.iterator();
+            int batch = 0;
+            while (iterator.hasNext()) {
+                Profile profile = iterator.next();
+                batch++;
+                if (profile.hasLegacyActivityKeysToAttend()) {
+                    migrated += migrate(Key.create(profile));
+                }
+            }
+            scanned += batch;
+            done = batch < BATCH_SIZE;
+            cursor = iterator.getCursor().toWebSafeString();
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.println("Scanned " + scanned + " profiles, migrated " + migrated
+                + " registrations.");
+        if (!done) {
+            writer.println("Continue with " + request.getRequestURI() + "?cursor=" + cursor);
+        }
+    }
+
+    /**
+     * Migrates the registrations of a Profile. It is reloaded in a transaction, so that a
+     * concurrent migration or change to the Profile isn't overwritten.
+     *
+     * @return the number of Registrations saved.
+     */
+    private static int migrate(final Key<Profile> profileKey) {
+        return ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                Profile profile = ofy().load().key(profileKey).now();
+                if (profile == null || !profile.hasLegacyActivityKeysToAttend()) {
+                    return 0;
+                }
+                List<Registration> registrations =
+                        Registration.takeLegacyRegistrations(profile);
+                ofy().save().entities(registrations).now();
+                ofy().save().entity(profile).now();
+                return registrations.size();
+            }
+        });
+    }
+}
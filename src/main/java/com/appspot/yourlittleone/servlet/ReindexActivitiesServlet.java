@@ -0,0 +1,97 @@
+package com.appspot.yourlittleone.servlet;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.service.ActivitySearch;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet reindexing all Activities, for admins only.
+ *
+ * Each Activity is re-saved, which backfills the datastore index of properties indexed after it
+ * was saved, like startDate, and put into the search index. Works in batches until the time
+ * budget of the request runs out, then prints the URL that continues from where it stopped.
+ */
+public class ReindexActivitiesServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of Activities re-saved per cross-group transaction, at most 25 entity groups.
+     */
+    private static final int MAX_XG_ACTIVITIES = 25;
+
+    /**
+     * Leaves room for the last batch within the 60 seconds request deadline.
+     */
+    private static final long TIME_BUDGET_NANOS = TimeUnit.SECONDS.toNanos(45);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        long start = System.nanoTime();
+        String cursor = request.getParameter("cursor");
+        int indexed = 0;
+        boolean done = false;
+        while (!done && System.nanoTime() - start < TIME_BUDGET_NANOS) {
+            Query<Activity> query = ofy().load().type(Activity.class)
+                    .limit(ActivitySearch.MAX_BATCH_PUT);
+            if (cursor != null && !cursor.isEmpty()) {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            }
+            QueryResultIterator<Activity> iterator = query.iterator();
+            List<Activity> activities = new ArrayList<>(ActivitySearch.MAX_BATCH_PUT);
+            while (iterator.hasNext()) {
+                activities.add(iterator.next());
+            }
+            for (int from = 0; from < activities.size(); from += MAX_XG_ACTIVITIES) {
+                resave(activities.subList(from,
+                        Math.min(from + MAX_XG_ACTIVITIES, activities.size())));
+            }
+            ActivitySearch.index(activities);
+            indexed += activities.size();
+            done = activities.size() < ActivitySearch.MAX_BATCH_PUT;
+            cursor = iterator.getCursor().toWebSafeString();
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.println("Indexed " + indexed + " activities.");
+        if (!done) {
+            writer.println("Continue with " + request.getRequestURI() + "?cursor=" + cursor);
+        }
+    }
+
+    /**
+     * Re-saves the given Activities as they are in the datastore. They are reloaded in a
+     * transaction, so that seats booked in the meantime aren't overwritten.
+     */
+    private static void resave(List<Activity> activities) {
+        final List<Key<Activity>> keys = new ArrayList<>(activities.size());
+        for (Activity activity : activities) {
+            keys.add(activity.getKey());
+        }
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                ofy().save().entities(ofy().load().keys(keys).values()).now();
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package com.appspot.yourlittleone.servlet;
+
+import com.appspot.yourlittleone.service.ConfirmationMailer;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for sending the queued confirmation e-mails in batches, invoked by cron.
+ *
+ * Failed mails are leased again after an exponential backoff, and given up on after
+ * MAX_ATTEMPTS. No batch is leased after TIME_BUDGET_NANOS, which is well within LEASE_SECONDS,
+ * so that the tasks of a slow run aren't leased and sent again by the next run.
+ */
+public class SendConfirmationEmailBatchServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = Logger.getLogger(
+            SendConfirmationEmailBatchServlet.class.getName());
+
+    private static final int BATCH_SIZE = 100;
+
+    private static final int MAX_BATCHES = 10;
+
+    /**
+     * How long a run keeps leasing batches. Cron starts a run every minute.
+     */
+    private static final long TIME_BUDGET_NANOS = TimeUnit.SECONDS.toNanos(40);
+
+    /**
+     * Long enough for the last batch leased within the time budget to be sent.
+     */
+    private static final long LEASE_SECONDS = 300;
+
+    private static final long BASE_BACKOFF_SECONDS = 30;
+
+    private static final long MAX_BACKOFF_SECONDS = 3600;
+
+    private static final int MAX_ATTEMPTS = 8;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Queue queue = QueueFactory.getQueue(ConfirmationMailer.QUEUE_NAME);
+        int sent = 0;
+        int failed = 0;
+        int deadLettered = 0;
+        int duplicates = 0;
+        Set<String> seen = new HashSet<>();
+        long start = System.nanoTime();
+        for (int batch = 0; batch < MAX_BATCHES
+                && System.nanoTime() - start < TIME_BUDGET_NANOS; batch++) {
+            List<TaskHandle> tasks = queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS, BATCH_SIZE);
+            if (tasks.isEmpty()) {
+                break;
+            }
+            List<TaskHandle> done = new ArrayList<>(tasks.size());
+            try {
+                for (TaskHandle task : tasks) {
+                    String email = null;
+                    try {
+                        String dedupeKey = null;
+                        String subject = null;
+                        String body = null;
+                        for (Map.Entry<String, String> param : task.extractParams()) {
+                            switch (param.getKey()) {
+                                case ConfirmationMailer.PARAM_EMAIL:
+                                    email = param.getValue();
+                                    break;
+                                case ConfirmationMailer.PARAM_DEDUPE_KEY:
+                                    dedupeKey = param.getValue();
+                                    break;
+                                case ConfirmationMailer.PARAM_SUBJECT:
+                                    subject = param.getValue();
+                                    break;
+                                case ConfirmationMailer.PARAM_BODY:
+                                    body = param.getValue();
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                        if (!seen.add(email + "|" + dedupeKey)) {
+                            duplicates++;
+                        } else {
+                            ConfirmationMailer.send(email, subject, body);
+                            ConfirmationMailer.recordSent();
+                            sent++;
+                        }
+                        done.add(task);
+                    } catch (MessagingException | IOException | RuntimeException e) {
+                        // A task failing with an unchecked exception is retried and dead-lettered
+                        // like any other, instead of aborting the run.
+                        int attempts = task.getRetryCount() == null ? 1 : task.getRetryCount();
+                        if (attempts >= MAX_ATTEMPTS) {
+                            LOG.log(Level.SEVERE, String.format(
+                                    "Giving up on a mail to %s after %d attempts",
+                                    email, attempts), e);
+                            ConfirmationMailer.recordDeadLettered();
+                            deadLettered++;
+                            done.add(task);
+                        } else {
+                            LOG.log(Level.WARNING,
+                                    String.format("Failed to send a mail to %s", email), e);
+                            // The task becomes available again when the extended lease expires.
+                            queue.modifyTaskLease(task, backoffSeconds(attempts),
+                                    TimeUnit.SECONDS);
+                            ConfirmationMailer.recordFailed();
+                            failed++;
+                        }
+                    }
+                }
+            } finally {
+                // Deleted even when the batch is cut short, so that the mails sent aren't sent
+                // again once their lease expires.
+                if (!done.isEmpty()) {
+                    queue.deleteTask(done);
+                }
+            }
+        }
+        String summary = String.format("sent=%d, failed=%d, deadLettered=%d, duplicates=%d",
+                sent, failed, deadLettered, duplicates);
+        LOG.info("Confirmation e-mails: " + summary);
+        response.setContentType("text/plain");
+        response.getWriter().println(summary);
+    }
+
+    private static long backoffSeconds(int attempts) {
+        return Math.min(BASE_BACKOFF_SECONDS << Math.min(attempts - 1, 20), MAX_BACKOFF_SECONDS);
+    }
+}
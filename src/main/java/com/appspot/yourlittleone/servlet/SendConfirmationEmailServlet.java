@@ -1,52 +1,29 @@
 package com.appspot.yourlittleone.servlet;
 
-import com.google.appengine.api.utils.SystemProperty;
+import com.appspot.yourlittleone.service.ConfirmationMailer;
+import com.google.appengine.api.taskqueue.QueueFactory;
 
 import java.io.IOException;
-import java.util.Properties;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A servlet for sending a notification e-mail.
+ * A servlet for the confirmation e-mail push tasks queued before the mails moved to the
+ * confirmation-email pull queue. It hands them over to the pull queue, so that they are sent in
+ * batches and retried with a backoff like the new ones.
  */
 public class SendConfirmationEmailServlet extends HttpServlet {
 
-    private static final Logger LOG = Logger.getLogger(
-            SendConfirmationEmailServlet.class.getName());
-
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         String email = request.getParameter("email");
         String activityInfo = request.getParameter("activityInfo");
-        Properties props = new Properties();
-        Session session = Session.getDefaultInstance(props, null);
         String body = "Hi, you have created a following activity.\n" + activityInfo;
-        try {
-            Message message = new MimeMessage(session);
-            InternetAddress from = new InternetAddress(
-                    String.format("noreply@%s.appspotmail.com",
-                            SystemProperty.applicationId.get()), "Your Little One");
-            message.setFrom(from);
-            message.addRecipient(Message.RecipientType.TO, new InternetAddress(email, ""));
-            message.setSubject("You created a new Activity!");
-            message.setText(body);
-            Transport.send(message);
-        } catch (MessagingException e) {
-            LOG.log(Level.WARNING, String.format("Failed to send an mail to %s", email), e);
-            throw new RuntimeException(e);
-        }
+        QueueFactory.getQueue(ConfirmationMailer.QUEUE_NAME).add(ConfirmationMailer.newTask(
+                email, activityInfo, "You created a new Activity!", body));
     }
 }
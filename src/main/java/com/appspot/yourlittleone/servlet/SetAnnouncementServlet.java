@@ -0,0 +1,81 @@
+package com.appspot.yourlittleone.servlet;
+
+import static com.appspot.yourlittleone.service.OfyService.ofy;
+
+import com.appspot.yourlittleone.Constants;
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.service.SeatAllocator;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for putting an announcement about nearly sold out activities into memcache,
+ * invoked by cron.
+ *
+ * The seatsAvailable of a sharded Activity is only a snapshot, so sharded Activities are read
+ * separately and checked against the sum of their SeatShards.
+ */
+public class SetAnnouncementServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Activities with fewer seats available than this are nearly sold out.
+     */
+    private static final int NEARLY_SOLD_OUT_SEATS = 5;
+
+    /**
+     * The maximum number of activities named in the announcement.
+     */
+    private static final int MAX_ACTIVITIES = 20;
+
+    /**
+     * The maximum number of sharded activities checked, sharding is for a few popular ones.
+     */
+    private static final int MAX_SHARDED_ACTIVITIES = 500;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Iterable<Activity> activities = ofy().load().type(Activity.class)
+                .filter("seatsAvailable <", NEARLY_SOLD_OUT_SEATS)
+                .filter("seatsAvailable >", 0)
+                .limit(MAX_ACTIVITIES);
+        List<String> activityNames = new ArrayList<>(MAX_ACTIVITIES);
+        for (Activity activity : activities) {
+            if (!activity.isSeatSharded()) {
+                activityNames.add(activity.getName());
+            }
+        }
+        List<Activity> sharded = ofy().load().type(Activity.class)
+                .filter("seatShards >", 0)
+                .limit(MAX_SHARDED_ACTIVITIES)
+                .list();
+        SeatAllocator.attachSeatsAvailable(sharded);
+        for (Activity activity : sharded) {
+            if (activityNames.size() < MAX_ACTIVITIES && activity.getSeatsAvailable() > 0
+                    && activity.getSeatsAvailable() < NEARLY_SOLD_OUT_SEATS) {
+                activityNames.add(activity.getName());
+            }
+        }
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        if (activityNames.isEmpty()) {
+            memcacheService.delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        } else {
+            String announcementMessage = "Last chance to attend! The following activities "
+                    + "are nearly sold out: " + Joiner.on(", ").join(activityNames);
+            memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, announcementMessage);
+        }
+        response.setStatus(204);
+    }
+}
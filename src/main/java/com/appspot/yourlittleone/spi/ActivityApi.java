@@ -3,38 +3,81 @@ package com.appspot.yourlittleone.spi;
 import static com.appspot.yourlittleone.service.OfyService.factory;
 import static com.appspot.yourlittleone.service.OfyService.ofy;
 
+import com.google.api.server.spi.ServiceException;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.InternalFailureException;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.appengine.api.users.User;
 import com.appspot.yourlittleone.Constants;
 import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.domain.ActivitySummary;
 import com.appspot.yourlittleone.domain.Announcement;
 import com.appspot.yourlittleone.domain.AppEngineUser;
+import com.appspot.yourlittleone.domain.IdempotencyRecord;
 import com.appspot.yourlittleone.domain.Profile;
+import com.appspot.yourlittleone.domain.Registration;
+import com.appspot.yourlittleone.domain.SeatShard;
 import com.appspot.yourlittleone.form.ActivityForm;
+import com.appspot.yourlittleone.form.ActivityImportForm;
 import com.appspot.yourlittleone.form.ActivityQueryForm;
 import com.appspot.yourlittleone.form.ProfileForm;
 import com.appspot.yourlittleone.form.ProfileForm.Gender;
+import com.appspot.yourlittleone.form.RegistrationForm;
+import com.appspot.yourlittleone.service.ActivityCache;
+import com.appspot.yourlittleone.service.ActivitySearch;
+import com.appspot.yourlittleone.service.ConfirmationMailer;
+import com.appspot.yourlittleone.service.Geohash;
+import com.appspot.yourlittleone.service.IdempotencyCache;
+import com.appspot.yourlittleone.service.QueryResultCache;
+import com.appspot.yourlittleone.service.SeatAllocator;
+import com.appspot.yourlittleone.service.UserIdCache;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Defines Activity APIs.
@@ -54,6 +97,72 @@ public final class ActivityApi {
 
     private static final Logger LOG = Logger.getLogger(ActivityApi.class.getName());
 
+    /**
+     * The maximum number of Activities registered in a single transaction. Cross-group
+     * transactions span up to 25 entity groups, and one of them is the user's Profile.
+     */
+    private static final int MAX_XG_ACTIVITIES = 24;
+
+    /**
+     * The maximum number of entities the datastore accepts in a single batch put.
+     */
+    private static final int MAX_BATCH_PUT = 500;
+
+    /**
+     * The maximum number of rows of a single import, which must complete within the request
+     * deadline.
+     */
+    private static final int MAX_IMPORT_ROWS = 1000;
+
+    /**
+     * The maximum length of the Activities listed in an import's summary e-mail, which is sent
+     * as the payload of a single pull task.
+     */
+    private static final int MAX_IMPORT_SUMMARY_LENGTH = 32 * 1024;
+
+    /**
+     * The maximum number of Activities read by a single proximity query, over all its cells.
+     */
+    private static final int MAX_NEARBY_SCANNED = 1000;
+
+    /**
+     * The maximum length of an idempotency key, the name of an IdempotencyRecord is built from it.
+     */
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 128;
+
+    /**
+     * The message of the ConflictException of a user who already registered for the Activity.
+     * Conflicts are told apart, and replayed from IdempotencyRecords, by their message.
+     */
+    private static final String ALREADY_REGISTERED_MESSAGE =
+            "You have already registered for this activity";
+
+    /**
+     * Caches the keys of queryActivities results, invalidated by the activity generation.
+     */
+    private static final QueryResultCache QUERY_CACHE = new QueryResultCache("ActivityQuery");
+
+    /**
+     * Caches the keys of getActivitiesCreated pages, invalidated by the organizer's generation.
+     */
+    private static final QueryResultCache CREATED_CACHE = new QueryResultCache("ActivitiesCreated");
+
+    /**
+     * Whether queryActivities runs keys-only queries followed by a batch get, instead of
+     * fetching the entities with the query. Configured per deployment in appengine-web.xml.
+     */
+    private static final boolean KEYS_ONLY_QUERIES =
+            Boolean.getBoolean(Constants.KEYS_ONLY_QUERIES_PROPERTY);
+
+    /**
+     * Whether View.SUMMARY of queryActivities and getActivitiesCreated runs projection queries.
+     * Until the index of every Activity is backfilled a projection would leave out older
+     * Activities, so SUMMARY then reads the same entities as FULL. Configured per deployment in
+     * appengine-web.xml.
+     */
+    private static final boolean SUMMARY_PROJECTION =
+            Boolean.getBoolean(Constants.SUMMARY_PROJECTION_PROPERTY);
+
     private static String extractDefaultDisplayNameFromEmail(String email) {
         return email == null ? null : email.substring(0, email.indexOf("@"));
     }
@@ -71,14 +180,212 @@ public final class ActivityApi {
         return profile;
     }
 
+    /**
+     * Makes sure the user has a Profile before registering, and moves the registrations still
+     * stored inline on the Profile into Registration entities.
+     *
+     * Must be called in a transaction. The Profile is only written when it is new or migrated.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @param userId The App Engine userId of the user.
+     * @return the Profile of the user, to bump its attendanceVersion when registrations change.
+     */
+    private static Profile prepareProfileForRegistration(User user, String userId) {
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        if (profile == null) {
+            profile = getProfileFromUser(user, userId);
+            ofy().save().entity(profile).now();
+        } else if (profile.hasLegacyActivityKeysToAttend()) {
+            migrateLegacyRegistrations(profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Saves the activity keys stored inline on the Profile as Registration entities.
+     *
+     * Must be called in a transaction, the Registrations are in the Profile's entity group.
+     *
+     * @param profile A Profile which still has legacy activity keys.
+     */
+    private static void migrateLegacyRegistrations(Profile profile) {
+        ofy().save().entities(Registration.takeLegacyRegistrations(profile)).now();
+        ofy().save().entity(profile).now();
+    }
+
+    /**
+     * Returns the ETag the client already has, from the If-None-Match header or, for clients
+     * which can't set request headers, from the ifNoneMatch parameter.
+     *
+     * @param request The HttpServletRequest injected by the cloud endpoints.
+     * @param ifNoneMatch The ifNoneMatch parameter, or null.
+     * @return the ETag without quotes and weak prefix, or null for an unconditional request.
+     */
+    private static String requestedEtag(HttpServletRequest request, String ifNoneMatch) {
+        String etag = ifNoneMatch != null ? ifNoneMatch : request.getHeader("If-None-Match");
+        if (etag == null) {
+            return null;
+        }
+        etag = etag.trim();
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            etag = etag.substring(1, etag.length() - 1);
+        }
+        return etag.isEmpty() ? null : etag;
+    }
+
+    /**
+     * Returns the ETag of a page of Activities the user is going to attend.
+     *
+     * @param profile The Profile of the user.
+     * @param activityKeys The keys of the Activities in the page, in order.
+     * @param etags The ETags of the Activities by key.
+     * @return the ETag of the page, or null if the ETag of an Activity is missing.
+     */
+    private static String attendanceEtag(Profile profile, List<Key<Activity>> activityKeys,
+                                         Map<Key<Activity>, String> etags) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Key<Activity> activityKey : activityKeys) {
+            String etag = etags.get(activityKey);
+            if (etag == null) {
+                return null;
+            }
+            hasher.putString(activityKey.getString()).putString(etag);
+        }
+        return profile.getAttendanceVersion() + "-" + hasher.hash();
+    }
+
+    /**
+     * Returns the summaries of the given Activities, whose seatsAvailable must be attached.
+     *
+     * @param activities Activities to summarize.
+     * @return the summaries, in the same order.
+     */
+    private static List<ActivitySummary> summarize(Collection<Activity> activities) {
+        List<ActivitySummary> summaries = new ArrayList<>(activities.size());
+        for (Activity activity : activities) {
+            summaries.add(ActivitySummary.of(activity));
+        }
+        return summaries;
+    }
+
+    /**
+     * Returns the memcache key of the generation counter of the organizer's Activities.
+     *
+     * @param userId The App Engine userId of the organizer.
+     * @return the memcache key of the counter.
+     */
+    private static String organizerGenerationKey(String userId) {
+        return Constants.MEMCACHE_ORGANIZER_GENERATION_KEY_PREFIX + userId;
+    }
+
+    /**
+     * Returns the key of the IdempotencyRecord of a mutation.
+     *
+     * @param userId The App Engine userId of the user.
+     * @param operation The mutation.
+     * @param idempotencyKey The idempotency key sent by the client, or null.
+     * @return the key of the IdempotencyRecord, or null when the client sent no key.
+     * @throws BadRequestException when the idempotency key is empty or too long.
+     */
+    private static Key<IdempotencyRecord> idempotencyRecordKey(
+            String userId, IdempotencyRecord.Operation operation, String idempotencyKey)
+            throws BadRequestException {
+        if (idempotencyKey == null) {
+            return null;
+        }
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new BadRequestException("The idempotencyKey must have 1 to "
+                    + MAX_IDEMPOTENCY_KEY_LENGTH + " characters.");
+        }
+        return IdempotencyRecord.key(userId, operation, idempotencyKey);
+    }
+
+    /**
+     * Returns the recorded outcome of a registration mutation.
+     *
+     * @param record The IdempotencyRecord of the mutation.
+     * @param websafeActivityKey The websafe key of the Activity in the retried request.
+     * @return TxResult holding the recorded result or ConflictException.
+     */
+    private static TxResult<Boolean> replay(IdempotencyRecord record, String websafeActivityKey) {
+        if (!websafeActivityKey.equals(record.getWebsafeActivityKey())) {
+            return new TxResult<>(new ConflictException(
+                    "The idempotencyKey was already used for another Activity."));
+        }
+        if (record.getConflictMessage() != null) {
+            return new TxResult<>(new ConflictException(record.getConflictMessage()));
+        }
+        return new TxResult<>(record.getResult());
+    }
+
+    /**
+     * Records the outcome of a registration mutation, in the transaction of the mutation when
+     * called within one. Empty results and NotFoundExceptions aren't recorded.
+     *
+     * @param recordKey The key of the IdempotencyRecord, or null when the client sent no key.
+     * @param websafeActivityKey The websafe key of the Activity.
+     * @param result The outcome of the mutation.
+     * @return the result.
+     */
+    private static TxResult<Boolean> recordOutcome(Key<IdempotencyRecord> recordKey,
+                                                   String websafeActivityKey,
+                                                   TxResult<Boolean> result) {
+        if (recordKey != null && !result.isEmpty()
+                && !(result.exception instanceof NotFoundException)) {
+            ofy().save().entity(new IdempotencyRecord(recordKey, websafeActivityKey,
+                    result.result,
+                    result.exception == null ? null : result.exception.getMessage())).now();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the page size actually applied to a paged query.
+     *
+     * @param pageSize The page size requested by the client, or null.
+     * @return pageSize clamped between 1 and MAX_PAGE_SIZE, or DEFAULT_PAGE_SIZE if not specified.
+     */
+    private static int effectivePageSize(Integer pageSize) {
+        if (pageSize == null || pageSize <= 0) {
+            return ActivityQueryForm.DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(pageSize, ActivityQueryForm.MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Fetches the organizers' Profiles of the given Activities in a single batch get, and
+     * attaches them to the Activities before they get serialized.
+     *
+     * @param activities Activities to resolve the organizers for.
+     */
+    private static void resolveOrganizers(Collection<Activity> activities) {
+        Set<Key<Profile>> organizerKeys = new HashSet<>();
+        for (Activity activity : activities) {
+            organizerKeys.add(activity.getProfileKey());
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizerKeys);
+        for (Activity activity : activities) {
+            activity.setOrganizerProfile(organizers.get(activity.getProfileKey()));
+        }
+    }
+
     /**
      * This is an ugly workaround for null userId for Android clients.
      *
+     * The resolved userId is cached, so the datastore round trips happen at most once per user
+     * until the cache entry expires.
+     *
      * @param user A User object injected by the cloud endpoints.
      * @return the App Engine userId for the user.
      */
     private static String getUserId(User user) {
         String userId = user.getUserId();
+        if (userId == null) {
+            userId = UserIdCache.get(user);
+        }
         if (userId == null) {
             LOG.info("userId is null, so trying to obtain it from the datastore.");
             AppEngineUser appEngineUser = new AppEngineUser(user);
@@ -88,6 +395,7 @@ public final class ActivityApi {
             AppEngineUser savedUser = objectify.load().key(appEngineUser.getKey()).now();
             userId = savedUser.getUser().getUserId();
             LOG.info("Obtained the userId: " + userId);
+            UserIdCache.put(user, userId);
         }
         return userId;
     }
@@ -108,6 +416,138 @@ public final class ActivityApi {
         }
     }
 
+    /**
+     * The outcome of importing a single row of a bulk Activity import.
+     */
+    public static final class ImportResult {
+
+        private final int row;
+
+        private final String websafeActivityKey;
+
+        private final String error;
+
+        private ImportResult(int row, String websafeActivityKey, String error) {
+            this.row = row;
+            this.websafeActivityKey = websafeActivityKey;
+            this.error = error;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        /**
+         * @return the key of the created Activity, or null when the row was rejected.
+         */
+        public String getWebsafeActivityKey() {
+            return websafeActivityKey;
+        }
+
+        /**
+         * @return why the row was rejected, or null when the Activity was created.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * The outcome of registering for a single Activity in a bulk registration.
+     */
+    public static final class RegistrationResult {
+
+        /**
+         * Enum representing the outcome.
+         */
+        public static enum Status {
+            REGISTERED,
+            FULL,
+            ALREADY_REGISTERED,
+            NOT_FOUND
+        }
+
+        private final String websafeActivityKey;
+
+        private final Status status;
+
+        public RegistrationResult(String websafeActivityKey, Status status) {
+            this.websafeActivityKey = websafeActivityKey;
+            this.status = status;
+        }
+
+        public String getWebsafeActivityKey() {
+            return websafeActivityKey;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Enum representing how much of each Activity a list endpoint returns.
+     */
+    public static enum View {
+        FULL,
+        SUMMARY
+    }
+
+    /**
+     * A page of Activities, or of their summaries with View.SUMMARY, together with the ETag of
+     * the page when it has one.
+     *
+     * Has the same items and nextPageToken as CollectionResponse, which can't be subclassed
+     * because the API config generator doesn't resolve its type parameter in subclasses.
+     */
+    public static final class ActivityCollectionResponse {
+
+        private final Collection<Activity> items;
+
+        private final Collection<ActivitySummary> summaries;
+
+        private final String nextPageToken;
+
+        private final String etag;
+
+        private ActivityCollectionResponse(Collection<Activity> items,
+                                           Collection<ActivitySummary> summaries,
+                                           String nextPageToken, String etag) {
+            this.items = items;
+            this.summaries = summaries;
+            this.nextPageToken = nextPageToken;
+            this.etag = etag;
+        }
+
+        public Collection<Activity> getItems() {
+            return items;
+        }
+
+        public Collection<ActivitySummary> getSummaries() {
+            return summaries;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    /**
+     * Thrown to answer a conditional GET whose ETag still matches with 304 Not Modified.
+     */
+    public static final class NotModifiedException extends ServiceException {
+
+        private static final long serialVersionUID = 1L;
+
+        public NotModifiedException() {
+            super(HttpServletResponse.SC_NOT_MODIFIED, "Not Modified");
+        }
+    }
+
     /**
      * A wrapper class that can embrace a generic result or some kind of exception.
      *
@@ -151,6 +591,13 @@ public final class ActivityApi {
             }
         }
 
+        /**
+         * Returns true when the transaction produced neither a result nor an exception.
+         */
+        private boolean isEmpty() {
+            return result == null && exception == null;
+        }
+
         private ResultType getResult() throws NotFoundException, ForbiddenException, ConflictException {
             if (exception instanceof NotFoundException) {
                 throw (NotFoundException) exception;
@@ -198,7 +645,9 @@ public final class ActivityApi {
         String displayName = profileForm.getDisplayName();
         Gender gender = profileForm.getGender();
 
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        String userId = getUserId(user);
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        boolean renamed = false;
         if (profile == null) {
             // Populate displayName and gender with the default values if null.
             if (displayName == null) {
@@ -207,53 +656,259 @@ public final class ActivityApi {
             if (gender == null) {
                 gender = Gender.You_Guess;
             }
-            profile = new Profile(getUserId(user), displayName, user.getEmail(), gender);
+            profile = new Profile(userId, displayName, user.getEmail(), gender);
         } else {
+            long version = profile.getVersion();
             profile.update(displayName, gender);
+            renamed = profile.getVersion() != version;
         }
         ofy().save().entity(profile).now();
+        if (renamed) {
+            // The ETags of the organizer's Activities include the version of the Profile.
+            ActivityCache.invalidateEtags(
+                    ofy().load().type(Activity.class).ancestor(profile).keys().list());
+        }
         return profile;
     }
 
+    /**
+     * Returns the announcement about nearly sold out activities, set into memcache by cron.
+     *
+     * @return Announcement object, or null when there is no announcement.
+     */
+    @ApiMethod(name = "getAnnouncement", path = "announcement", httpMethod = HttpMethod.GET)
+    public Announcement getAnnouncement() {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        Object message = memcacheService.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        if (message != null) {
+            return new Announcement(message.toString());
+        }
+        return null;
+    }
+
     /**
      * Creates a new Activity object and stores it to the datastore.
      *
      * @param user A user who invokes this method, null when the user is not signed in.
      * @param activityForm An ActivityForm object representing user's inputs.
+     * @param idempotencyKey A key chosen by the client for this creation, so that a retry
+     *                       returns the Activity created by the first attempt.
      * @return A newly created Activity Object.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the idempotency key is empty or too long.
      */
     @ApiMethod(name = "createActivity", path = "activity", httpMethod = HttpMethod.POST)
-    public Activity createActivity(final User user, final ActivityForm activityForm)
-        throws UnauthorizedException {
+    public Activity createActivity(final User user, final ActivityForm activityForm,
+                                   @Nullable @Named("idempotencyKey") final String idempotencyKey)
+        throws UnauthorizedException, BadRequestException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        final String userId = getUserId(user);
+        final Key<IdempotencyRecord> recordKey = idempotencyRecordKey(userId,
+                IdempotencyRecord.Operation.CREATE_ACTIVITY, idempotencyKey);
+        IdempotencyRecord record = IdempotencyCache.get(recordKey);
+        if (record != null) {
+            // A retry, return the Activity created by the first attempt.
+            Activity activity = ActivityCache.get(
+                    Key.<Activity>create(record.getWebsafeActivityKey()));
+            SeatAllocator.attachSeatsAvailable(Collections.singletonList(activity));
+            return activity;
+        }
         // Allocate Id first, in order to make the transaction idempotent.
-        Key<Profile> profileKey = Key.create(Profile.class, getUserId(user));
+        Key<Profile> profileKey = Key.create(Profile.class, userId);
         final Key<Activity> activityKey = factory().allocateId(profileKey, Activity.class);
         final long activityId = activityKey.getId();
-        final Queue queue = QueueFactory.getDefaultQueue();
-        final String userId = getUserId(user);
+        final Queue queue = QueueFactory.getQueue(ConfirmationMailer.QUEUE_NAME);
         // Start a transaction.
         Activity activity = ofy().transact(new Work<Activity>() {
             @Override
             public Activity run() {
+                // A retry racing with the first attempt.
+                IdempotencyRecord record = IdempotencyCache.getInTransaction(recordKey);
+                if (record != null) {
+                    return ofy().load().key(
+                            Key.<Activity>create(record.getWebsafeActivityKey())).now();
+                }
                 // Fetch user's Profile.
                 Profile profile = getProfileFromUser(user, userId);
                 Activity activity = new Activity(activityId, userId, activityForm);
                 // Save Activity and Profile.
                 ofy().save().entities(activity, profile).now();
-                queue.add(ofy().getTransaction(),
-                        TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
-                        .param("email", profile.getMainEmail())
-                        .param("activityInfo", activity.toString()));
+                if (recordKey != null) {
+                    ofy().save().entity(new IdempotencyRecord(recordKey,
+                            activity.getWebsafeKey(), true, null)).now();
+                }
+                if (activity.isSeatSharded()) {
+                    ofy().save().entities(SeatShard.createShards(activityKey,
+                            activity.getSeatShards(), activity.getMaxAttendees())).now();
+                }
+                queue.add(ofy().getTransaction(), ConfirmationMailer.newTask(
+                        profile.getMainEmail(), activity.getWebsafeKey(),
+                        "You created a new Activity!",
+                        "Hi, you have created a following activity.\n" + activity.toString()));
                 return activity;
             }
         });
+        if (activity.getId() != activityId) {
+            SeatAllocator.attachSeatsAvailable(Collections.singletonList(activity));
+            return activity;
+        }
+        QueryResultCache.bumpGeneration(Constants.MEMCACHE_ACTIVITY_GENERATION_KEY);
+        QueryResultCache.bumpGeneration(organizerGenerationKey(userId));
+        ActivitySearch.index(Collections.singletonList(activity));
         return activity;
     }
 
+    /**
+     * Creates many Activities at once, e.g. when an organizer migrates a seasonal schedule.
+     *
+     * The ids are allocated in a single range, the Activities are saved in batches of up to
+     * MAX_BATCH_PUT entities, and the organizer gets one summary e-mail for the whole import.
+     * A row that fails validation is reported in its ImportResult and doesn't abort the others.
+     * The summary e-mail is only queued once all rows are saved, and failing to queue it
+     * doesn't fail the import.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param activityImportForm The ActivityForms to create.
+     * @return the outcome of each row, in the order of the request.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when there are more than MAX_IMPORT_ROWS rows.
+     */
+    @ApiMethod(name = "importActivities", path = "activities/import", httpMethod = HttpMethod.POST)
+    public List<ImportResult> importActivities(final User user,
+                                               final ActivityImportForm activityImportForm)
+            throws UnauthorizedException, BadRequestException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        List<ActivityForm> activityForms = activityImportForm.getActivities();
+        if (activityForms.size() > MAX_IMPORT_ROWS) {
+            throw new BadRequestException(
+                    "An import is limited to " + MAX_IMPORT_ROWS + " Activities.");
+        }
+        List<ImportResult> results = new ArrayList<>(activityForms.size());
+        if (activityForms.isEmpty()) {
+            return results;
+        }
+        final String userId = getUserId(user);
+        // The Profile is reloaded and only saved when it is new, so that a concurrent change to
+        // an existing Profile isn't overwritten with a stale copy.
+        Profile profile = ofy().transact(new Work<Profile>() {
+            @Override
+            public Profile run() {
+                Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+                if (profile == null) {
+                    profile = getProfileFromUser(user, userId);
+                    ofy().save().entity(profile).now();
+                }
+                return profile;
+            }
+        });
+        Key<Profile> profileKey = Key.create(profile);
+        // A single RPC for the whole import; ids of rejected rows are simply left unused.
+        Iterator<Key<Activity>> ids = factory()
+                .allocateIds(profileKey, Activity.class, activityForms.size()).iterator();
+        List<Activity> imported = new ArrayList<>(activityForms.size());
+        List<Object> batch = new ArrayList<>();
+        StringBuilder summary = new StringBuilder();
+        int unlisted = 0;
+        for (int row = 0; row < activityForms.size(); row++) {
+            long activityId = ids.next().getId();
+            String error = validateImportRow(activityForms.get(row));
+            if (error != null) {
+                results.add(new ImportResult(row, null, error));
+                continue;
+            }
+            Activity activity = new Activity(activityId, userId, activityForms.get(row));
+            List<SeatShard> shards = activity.isSeatSharded()
+                    ? SeatShard.createShards(activity.getKey(), activity.getSeatShards(),
+                            activity.getMaxAttendees())
+                    : Collections.<SeatShard>emptyList();
+            if (batch.size() + 1 + shards.size() > MAX_BATCH_PUT) {
+                ofy().save().entities(batch).now();
+                batch.clear();
+            }
+            batch.add(activity);
+            batch.addAll(shards);
+            imported.add(activity);
+            results.add(new ImportResult(row, activity.getWebsafeKey(), null));
+            String listing = activity.toString() + "\n";
+            if (unlisted == 0 && summary.length() + listing.length() <= MAX_IMPORT_SUMMARY_LENGTH) {
+                summary.append(listing);
+            } else {
+                unlisted++;
+            }
+        }
+        if (!batch.isEmpty()) {
+            ofy().save().entities(batch).now();
+        }
+        if (!imported.isEmpty()) {
+            QueryResultCache.bumpGeneration(Constants.MEMCACHE_ACTIVITY_GENERATION_KEY);
+            QueryResultCache.bumpGeneration(organizerGenerationKey(userId));
+            ActivitySearch.index(imported);
+            if (unlisted > 0) {
+                summary.append("... and ").append(unlisted).append(" more.\n");
+            }
+            // The Activities are saved by now, so the import succeeds even without its e-mail.
+            try {
+                QueueFactory.getQueue(ConfirmationMailer.QUEUE_NAME).add(
+                        ConfirmationMailer.newTask(profile.getMainEmail(),
+                                "import#" + firstWebsafeActivityKey(results),
+                                "You imported new Activities!",
+                                "Hi, you have created following activities.\n" + summary));
+            } catch (TransientFailureException | InternalFailureException e) {
+                LOG.log(Level.WARNING, "Failed to queue the summary of an import by " + userId, e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks an imported row against the requirements of the Activity constructor.
+     *
+     * @param activityForm A row of an import, null when the client sent an empty row.
+     * @return why the row is rejected, or null when an Activity can be created from it.
+     */
+    private static String validateImportRow(ActivityForm activityForm) {
+        if (activityForm == null) {
+            return "The row is empty";
+        }
+        if (activityForm.getName() == null) {
+            return "The name is required";
+        }
+        if (activityForm.getMaxAttendees() < 0) {
+            return "maxAttendees must not be negative";
+        }
+        if (activityForm.getSeatShards() < 0
+                || activityForm.getSeatShards() > SeatShard.MAX_SHARDS) {
+            return "The number of seat shards must be between 0 and " + SeatShard.MAX_SHARDS;
+        }
+        Double latitude = activityForm.getLatitude();
+        Double longitude = activityForm.getLongitude();
+        if ((latitude == null) != (longitude == null)) {
+            return "Latitude and longitude must be set together.";
+        }
+        if (latitude != null && (latitude < -90 || latitude > 90
+                || longitude < -180 || longitude > 180)) {
+            return "Invalid coordinates: " + latitude + ", " + longitude;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key of the first Activity created by an import, which identifies its summary
+     * e-mail.
+     */
+    private static String firstWebsafeActivityKey(List<ImportResult> results) {
+        for (ImportResult result : results) {
+            if (result.getWebsafeActivityKey() != null) {
+                return result.getWebsafeActivityKey();
+            }
+        }
+        return null;
+    }
+
     /**
      * Updates the existing activity with the given activityId.
      *
@@ -299,21 +954,48 @@ public final class ActivityApi {
                     return new TxResult<>(
                             new ForbiddenException("Only the owner can update the activity."));
                 }
-                activity.updateWithActivityForm(activityForm);
+                if (activity.isSeatSharded()) {
+                    // Load all shards, so that the allocated seats are counted consistently.
+                    List<SeatShard> shards = new ArrayList<>(ofy().load().keys(
+                            SeatShard.keys(activityKey, activity.getSeatShards())).values());
+                    int seatsAvailable = 0;
+                    for (SeatShard shard : shards) {
+                        seatsAvailable += shard.getSeatsAvailable();
+                    }
+                    activity.syncSeatsAvailable(seatsAvailable);
+                    activity.updateWithActivityForm(activityForm);
+                    SeatShard.rebalance(shards, activity.getMaxAttendees());
+                    ofy().save().entities(shards).now();
+                } else {
+                    activity.updateWithActivityForm(activityForm);
+                }
                 ofy().save().entity(activity).now();
                 return new TxResult<>(activity);
             }
         });
-        // NotFoundException or ForbiddenException is actually thrown here.
-        return result.getResult();
+        // NotFoundException or ForbiddenException is actually thrown here, and then nothing
+        // was written, so the caches are left alone.
+        Activity activity = result.getResult();
+        ActivityCache.invalidate(activity.getKey());
+        SeatAllocator.invalidate(activity.getKey());
+        QueryResultCache.bumpGeneration(Constants.MEMCACHE_ACTIVITY_GENERATION_KEY);
+        QueryResultCache.bumpGeneration(organizerGenerationKey(userId));
+        ActivitySearch.index(Collections.singletonList(activity));
+        return activity;
     }
 
     /**
      * Returns an Activity object with the given activityId.
      *
+     * When the client sends the ETag it already has and it is still the cached ETag of the
+     * Activity, this answers 304 without loading the Activity.
+     *
      * @param websafeActivityKey The String representation of the Activity Key.
+     * @param ifNoneMatch The ETag the client already has, when it can't send If-None-Match.
+     * @param request The HttpServletRequest injected by the cloud endpoints.
      * @return a Activity object with the given activityId.
      * @throws NotFoundException when there is no Activity with the given activityId.
+     * @throws NotModifiedException when the ETag of the Activity hasn't changed.
      */
     @ApiMethod(
             name = "getActivity",
@@ -321,97 +1003,609 @@ public final class ActivityApi {
             httpMethod = HttpMethod.GET
     )
     public Activity getActivity(
-            @Named("websafeActivityKey") final String websafeActivityKey)
-            throws NotFoundException {
+            @Named("websafeActivityKey") final String websafeActivityKey,
+            @Nullable @Named("ifNoneMatch") final String ifNoneMatch,
+            final HttpServletRequest request)
+            throws NotFoundException, NotModifiedException {
         Key<Activity> activityKey = Key.create(websafeActivityKey);
-        Activity activity = ofy().load().key(activityKey).now();
+        String requestedEtag = requestedEtag(request, ifNoneMatch);
+        if (requestedEtag != null && requestedEtag.equals(ActivityCache.getEtag(activityKey))) {
+            throw new NotModifiedException();
+        }
+        Activity activity = ActivityCache.get(activityKey);
         if (activity == null) {
             throw new NotFoundException("No Activity found with key: " + websafeActivityKey);
         }
+        SeatAllocator.attachSeatsAvailable(Collections.singletonList(activity));
+        ActivityCache.putEtag(activity);
+        if (activity.getEtag().equals(requestedEtag)) {
+            throw new NotModifiedException();
+        }
         return activity;
     }
 
     /**
-     * Returns a collection of Activity Object that the user is going to attend.
+     * Returns a page of Activities that the user is going to attend.
+     *
+     * When the client sends the ETag of the page it already has, the ETag is checked against
+     * the cached ETags of the Activities in the page, and the Activities are loaded only when
+     * it has changed.
      *
      * @param user An user who invokes this method, null when the user is not signed in.
-     * @return a Collection of Activities that the user is going to attend.
+     * @param pageSize The maximum number of Activities in the page.
+     * @param pageToken The nextPageToken returned by the previous page, null for the first page.
+     * @param ifNoneMatch The ETag the client already has, when it can't send If-None-Match.
+     * @param view SUMMARY to return ActivitySummaries instead of Activities.
+     * @param request The HttpServletRequest injected by the cloud endpoints.
+     * @return a page of Activities that the user is going to attend.
      * @throws UnauthorizedException when the User object is null.
+     * @throws NotFoundException when the user has no Profile.
+     * @throws NotModifiedException when the ETag of the page hasn't changed.
      */
     @ApiMethod(
             name = "getActivitiesToAttend",
             path = "getActivitiesToAttend",
             httpMethod = HttpMethod.GET
     )
-    public Collection<Activity> getActivitiesToAttend(final User user)
-            throws UnauthorizedException, NotFoundException {
+    public ActivityCollectionResponse getActivitiesToAttend(final User user,
+                                                            @Nullable @Named("pageSize")
+                                                            final Integer pageSize,
+                                                            @Nullable @Named("pageToken")
+                                                            final String pageToken,
+                                                            @Nullable @Named("ifNoneMatch")
+                                                            final String ifNoneMatch,
+                                                            @Nullable @Named("view")
+                                                            final View view,
+                                                            final HttpServletRequest request)
+            throws UnauthorizedException, NotFoundException, NotModifiedException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        final Key<Profile> profileKey = Key.create(Profile.class, getUserId(user));
+        Profile profile = ofy().load().key(profileKey).now();
         if (profile == null) {
             throw new NotFoundException("Profile doesn't exist.");
         }
-        List<String> keyStringsToAttend = profile.getActivityKeysToAttend();
-        List<Key<Activity>> keysToAttend = new ArrayList<>();
-        for (String keyString : keyStringsToAttend) {
-            keysToAttend.add(Key.<Activity>create(keyString));
+        if (profile.hasLegacyActivityKeysToAttend()) {
+            profile = ofy().transact(new Work<Profile>() {
+                @Override
+                public Profile run() {
+                    Profile profile = ofy().load().key(profileKey).now();
+                    if (profile.hasLegacyActivityKeysToAttend()) {
+                        migrateLegacyRegistrations(profile);
+                    }
+                    return profile;
+                }
+            });
+        }
+        int limit = effectivePageSize(pageSize);
+        Query<Registration> query = ofy().load().type(Registration.class)
+                .ancestor(profileKey).limit(limit);
+        if (pageToken != null) {
+            query = query.startAt(Cursor.fromWebSafeString(pageToken));
+        }
+        // Registrations are named after the Activity key, so a keys-only query is enough.
+        QueryResultIterator<Key<Registration>> iterator = query.keys().iterator();
+        List<Key<Activity>> keysToAttend = new ArrayList<>(limit);
+        while (iterator.hasNext()) {
+            keysToAttend.add(Registration.activityKeyOf(iterator.next()));
+        }
+        String nextPageToken = keysToAttend.size() == limit
+                ? iterator.getCursor().toWebSafeString() : null;
+        String requestedEtag = requestedEtag(request, ifNoneMatch);
+        if (requestedEtag != null && requestedEtag.equals(
+                attendanceEtag(profile, keysToAttend, ActivityCache.getEtags(keysToAttend)))) {
+            throw new NotModifiedException();
+        }
+        Map<Key<Activity>, Activity> loaded = ofy().load().keys(keysToAttend);
+        List<Activity> activities = new ArrayList<>(loaded.values());
+        // Whatever the view, the ETags include the version of the organizers' Profiles.
+        resolveOrganizers(activities);
+        SeatAllocator.attachSeatsAvailable(activities);
+        ActivityCache.putEtags(activities);
+        Map<Key<Activity>, String> etags = new HashMap<>();
+        for (Activity activity : activities) {
+            etags.put(activity.getKey(), activity.getEtag());
+        }
+        // Activities deleted since the registration are left out of the ETag as well.
+        String etag = attendanceEtag(profile, new ArrayList<>(loaded.keySet()), etags);
+        if (etag.equals(requestedEtag)) {
+            throw new NotModifiedException();
         }
-        return ofy().load().keys(keysToAttend).values();
+        if (view == View.SUMMARY) {
+            return new ActivityCollectionResponse(null, summarize(activities), nextPageToken, etag);
+        }
+        return new ActivityCollectionResponse(activities, null, nextPageToken, etag);
     }
 
-    
     /**
-     * Queries against the datastore with the given filters and returns the result.
+     * Returns a page of Profiles of the users registered to attend the Activity.
+     * Only the organizer of the Activity can list its attendees.
+     *
+     * Attendees are listed from Registration entities; registrations still stored inline on a
+     * Profile are moved into them by /admin/migrate_registrations.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeActivityKey The String representation of the Activity Key.
+     * @param pageSize The maximum number of Profiles in the page.
+     * @param pageToken The nextPageToken returned by the previous page, null for the first page.
+     * @return a page of attendees' Profiles.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Activity with the given key.
+     * @throws ForbiddenException when the user is not the organizer of the Activity.
+     */
+    @ApiMethod(
+            name = "getAttendees",
+            path = "activity/{websafeActivityKey}/attendees",
+            httpMethod = HttpMethod.GET
+    )
+    public CollectionResponse<Profile> getAttendees(final User user,
+                                                    @Named("websafeActivityKey")
+                                                    final String websafeActivityKey,
+                                                    @Nullable @Named("pageSize")
+                                                    final Integer pageSize,
+                                                    @Nullable @Named("pageToken")
+                                                    final String pageToken)
+            throws UnauthorizedException, NotFoundException, ForbiddenException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Key<Activity> activityKey = Key.create(websafeActivityKey);
+        Activity activity = ActivityCache.get(activityKey);
+        if (activity == null) {
+            throw new NotFoundException("No Activity found with key: " + websafeActivityKey);
+        }
+        if (!activity.getOrganizerUserId().equals(getUserId(user))) {
+            throw new ForbiddenException("Only the owner can list the attendees.");
+        }
+        int limit = effectivePageSize(pageSize);
+        Query<Registration> query = ofy().load().type(Registration.class)
+                .filter("activityKey", activityKey).limit(limit);
+        if (pageToken != null) {
+            query = query.startAt(Cursor.fromWebSafeString(pageToken));
+        }
+        // The parent of each Registration is the attendee's Profile.
+        QueryResultIterator<Key<Registration>> iterator = query.keys().iterator();
+        List<Key<Profile>> attendeeKeys = new ArrayList<>(limit);
+        while (iterator.hasNext()) {
+            attendeeKeys.add(iterator.next().<Profile>getParent());
+        }
+        return CollectionResponse.<Profile>builder()
+                .setItems(new ArrayList<>(ofy().load().keys(attendeeKeys).values()))
+                .setNextPageToken(attendeeKeys.size() == limit
+                        ? iterator.getCursor().toWebSafeString() : null)
+                .build();
+    }
+
+    /**
+     * Returns whether the user has registered to attend the Activity.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeActivityKey The String representation of the Activity Key.
+     * @return Boolean true when the user has registered, otherwise false.
+     * @throws UnauthorizedException when the user is not signed in.
+     */
+    @ApiMethod(
+            name = "isRegisteredForActivity",
+            path = "activity/{websafeActivityKey}/registration",
+            httpMethod = HttpMethod.GET
+    )
+    public WrappedBoolean isRegisteredForActivity(final User user,
+                                                  @Named("websafeActivityKey")
+                                                  final String websafeActivityKey)
+            throws UnauthorizedException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        String userId = getUserId(user);
+        Key<Activity> activityKey = Key.create(websafeActivityKey);
+        if (ofy().load().key(Registration.key(userId, activityKey)).now() != null) {
+            return new WrappedBoolean(true);
+        }
+        // Registrations from before the Registration entity existed are still on the Profile.
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        if (profile != null && profile.hasLegacyActivityKeysToAttend()) {
+            return new WrappedBoolean(
+                    profile.getLegacyActivityKeysToAttend().contains(activityKey.getString()));
+        }
+        return new WrappedBoolean(false);
+    }
+
+    /**
+     * Queries against the datastore with the given filters and returns a single page of the result.
      *
      * Normally this kind of method is supposed to get invoked by a GET HTTP method,
      * but we do it with POST, in order to receive activityQueryForm Object via the POST body.
      *
-     * @param activityQueryForm A form object representing the query.
-     * @return A List of Activities that match the query.
+     * With View.SUMMARY, the page is read with a projection query when SUMMARY_PROJECTION is set
+     * and all the filters run in the datastore, so the full Activities are never read, not even
+     * on a cache hit.
+     *
+     * @param activityQueryForm A form object representing the query and the paging parameters.
+     * @param view SUMMARY to return ActivitySummaries instead of Activities.
+     * @return A page of Activities that match the query, with nextPageToken set when there might
+     *     be more results.
+     * @throws BadRequestException when a filter value doesn't fit the type of its field.
      */
     @ApiMethod(
             name = "queryActivities",
             path = "queryActivities",
             httpMethod = HttpMethod.POST
     )
-    public List<Activity> queryActivities(ActivityQueryForm activityQueryForm) {
-        Iterable<Activity> activityIterable = activityQueryForm.getQuery();
-        List<Activity> result = new ArrayList<>(0);
-        List<Key<Profile>> organizersKeyList = new ArrayList<>(0);
-        for (Activity activity : activityIterable) {
-            organizersKeyList.add(Key.create(Profile.class, activity.getOrganizerUserId()));
-            result.add(activity);
-        }
-        // To avoid separate datastore gets for each Activity, pre-fetch the Profiles.
-        ofy().load().keys(organizersKeyList);
+    public ActivityCollectionResponse queryActivities(ActivityQueryForm activityQueryForm,
+                                                      @Nullable @Named("view") View view)
+            throws BadRequestException {
+        boolean summary = view == View.SUMMARY;
+        int pageSize = activityQueryForm.getEffectivePageSize();
+        String canonicalKey;
+        try {
+            // Parses every filter value, so the query built from them below doesn't fail.
+            canonicalKey = activityQueryForm.getCanonicalKey();
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        // Cursors of a projection query only work with the same projection.
+        String queryKey = canonicalKey + (summary ? "|SUMMARY" : "");
+        // Read the generation first, so that a concurrent write invalidates what we cache below.
+        Long generation = QUERY_CACHE.generation(Constants.MEMCACHE_ACTIVITY_GENERATION_KEY);
+        QueryResultCache.Page page = QUERY_CACHE.get(generation, queryKey);
+        List<Activity> result = null;
+        List<ActivitySummary> summaries = null;
+        if (page == null) {
+            List<String> websafeKeys = new ArrayList<>(pageSize);
+            Cursor cursor;
+            boolean mayHaveMore;
+            List<Entity> projections = null;
+            if (summary && SUMMARY_PROJECTION && !activityQueryForm.hasResidualFilters()) {
+                QueryResultList<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                        .prepare(activityQueryForm.getProjectionQuery(
+                                ActivitySummary.PROJECTED_PROPERTIES))
+                        .asQueryResultList(activityQueryForm.getFetchOptions());
+                projections = entities;
+                summaries = summarizeProjections(entities,
+                        activityQueryForm.getEqualityValues());
+                for (ActivitySummary activitySummary : summaries) {
+                    websafeKeys.add(activitySummary.getWebsafeKey());
+                }
+                mayHaveMore = entities.size() == pageSize;
+                cursor = mayHaveMore ? entities.getCursor() : null;
+            } else if (KEYS_ONLY_QUERIES && !activityQueryForm.hasResidualFilters()) {
+                // Keys-only queries are cheaper, and the batch get can be served from the cache.
+                QueryResultIterator<Key<Activity>> keyIterator =
+                        activityQueryForm.getQuery().keys().iterator();
+                List<Key<Activity>> keys = new ArrayList<>(pageSize);
+                while (keyIterator.hasNext()) {
+                    Key<Activity> key = keyIterator.next();
+                    keys.add(key);
+                    websafeKeys.add(key.getString());
+                }
+                result = loadActivities(keys);
+                mayHaveMore = keys.size() == pageSize;
+                cursor = mayHaveMore ? keyIterator.getCursor() : null;
+            } else {
+                // Streams the results, applying the filters the datastore couldn't run, until
+                // the page is full or MAX_SCANNED activities have been read.
+                QueryResultIterator<Activity> activityIterator =
+                        activityQueryForm.getQuery().iterator();
+                result = new ArrayList<>(pageSize);
+                int scanned = 0;
+                while (result.size() < pageSize && activityIterator.hasNext()) {
+                    Activity activity = activityIterator.next();
+                    scanned++;
+                    if (activityQueryForm.matches(activity)) {
+                        result.add(activity);
+                        websafeKeys.add(activity.getWebsafeKey());
+                    }
+                }
+                mayHaveMore = result.size() == pageSize || scanned == ActivityQueryForm.MAX_SCANNED;
+                cursor = mayHaveMore ? activityIterator.getCursor() : null;
+            }
+            // A full page, or a scan cut short, means there might be more, so hand the cursor
+            // back to the client.
+            String nextPageToken = null;
+            if (cursor != null) {
+                nextPageToken = cursor.toWebSafeString();
+            }
+            page = new QueryResultCache.Page(websafeKeys, projections, nextPageToken);
+            QUERY_CACHE.put(generation, queryKey, page);
+        } else if (page.getProjections() != null) {
+            summaries = summarizeProjections(page.getProjections(),
+                    activityQueryForm.getEqualityValues());
+        } else {
+            result = loadActivities(keysOf(page));
+        }
+        return pageResponse(result, summaries, summary, page.getNextPageToken());
+    }
+
+    /**
+     * Returns the summaries of the Activities read by a projection query.
+     *
+     * @param entities The entities returned by the projection query.
+     * @param equalityValues The values of the equality filters of the query, by property.
+     * @return the summaries, in the same order.
+     */
+    private static List<ActivitySummary> summarizeProjections(List<Entity> entities,
+                                                              Map<String, Object> equalityValues) {
+        List<ActivitySummary> summaries = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            summaries.add(ActivitySummary.fromProjection(entity, equalityValues));
+        }
+        return summaries;
+    }
+
+    /**
+     * Returns the Activities pinned within the given radius, nearest first.
+     *
+     * The circle is covered with up to 9 geohash cells, whose keys-only queries run in parallel
+     * through the async datastore service. Only the Activities in those cells are read, so the
+     * cost grows with the area searched rather than with the number of Activities. Rather than
+     * return a partial result, the search is refused when the cells can't contain the circle or
+     * hold more than MAX_NEARBY_SCANNED Activities.
+     *
+     * @param latitude The latitude of the center.
+     * @param longitude The longitude of the center.
+     * @param radiusKm The radius in kilometers, at most Geohash.MAX_RADIUS_METERS / 1000.
+     * @param pageSize The maximum number of Activities returned.
+     * @return the nearest Activities within the radius.
+     * @throws BadRequestException when the coordinates or the radius are out of range, or the
+     *     search would be partial.
+     */
+    @ApiMethod(
+            name = "getActivitiesNearby",
+            path = "activitiesNearby",
+            httpMethod = HttpMethod.GET
+    )
+    public CollectionResponse<Activity> getActivitiesNearby(@Named("latitude") double latitude,
+                                                            @Named("longitude") double longitude,
+                                                            @Named("radiusKm") double radiusKm,
+                                                            @Nullable @Named("pageSize")
+                                                            Integer pageSize)
+            throws BadRequestException {
+        final double radiusMeters = radiusKm * 1000;
+        if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180
+                || !(radiusMeters > 0) || radiusMeters > Geohash.MAX_RADIUS_METERS) {
+            throw new BadRequestException("Invalid center or radius.");
+        }
+        if (!Geohash.canCover(latitude, radiusMeters)) {
+            throw new BadRequestException("The radius is too large at this latitude.");
+        }
+        Set<String> cells = Geohash.cover(latitude, longitude, radiusMeters);
+        // Each cell may hold the whole budget, so that none is cut before the distance sort.
+        int cellLimit = MAX_NEARBY_SCANNED + 1;
+        AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+        // Issue every query before reading any result.
+        List<Iterable<Entity>> cellResults = new ArrayList<>(cells.size());
+        for (String cell : cells) {
+            com.google.appengine.api.datastore.Query query =
+                    new com.google.appengine.api.datastore.Query(Key.getKind(Activity.class))
+                            .setFilter(new FilterPredicate("geohashes", FilterOperator.EQUAL, cell))
+                            .setKeysOnly();
+            cellResults.add(datastore.prepare(query).asList(
+                    FetchOptions.Builder.withLimit(cellLimit).prefetchSize(cellLimit)));
+        }
+        Set<Key<Activity>> keys = new HashSet<>();
+        for (Iterable<Entity> entities : cellResults) {
+            for (Entity entity : entities) {
+                keys.add(Key.<Activity>create(entity.getKey()));
+            }
+        }
+        if (keys.size() > MAX_NEARBY_SCANNED) {
+            throw new BadRequestException(
+                    "Too many Activities in this area; use a smaller radius.");
+        }
+        final Map<Activity, Double> distances = new HashMap<>();
+        for (Activity activity : ofy().load().keys(keys).values()) {
+            if (activity.hasCoordinates()) {
+                double distance = Geohash.distanceMeters(latitude, longitude,
+                        activity.getLatitude(), activity.getLongitude());
+                if (distance <= radiusMeters) {
+                    distances.put(activity, distance);
+                }
+            }
+        }
+        List<Activity> result = new ArrayList<>(distances.keySet());
+        Collections.sort(result, new Comparator<Activity>() {
+            @Override
+            public int compare(Activity a, Activity b) {
+                return Double.compare(distances.get(a), distances.get(b));
+            }
+        });
+        result = new ArrayList<>(result.subList(0,
+                Math.min(effectivePageSize(pageSize), result.size())));
+        resolveOrganizers(result);
+        SeatAllocator.attachSeatsAvailable(result);
+        return CollectionResponse.<Activity>builder().setItems(result).build();
+    }
+
+    /**
+     * Searches the name, description and topics of Activities for the given words and returns a
+     * single page of the matches, most relevant first.
+     *
+     * @param text The words to search for; an Activity matches when it contains all of them.
+     * @param pageSize The maximum number of Activities in the page.
+     * @param pageToken The nextPageToken of the previous page, null for the first page.
+     * @return A page of matching Activities, with nextPageToken set when there are more.
+     */
+    @ApiMethod(
+            name = "searchActivities",
+            path = "searchActivities",
+            httpMethod = HttpMethod.GET
+    )
+    public CollectionResponse<Activity> searchActivities(@Named("text") String text,
+                                                         @Nullable @Named("pageSize")
+                                                         Integer pageSize,
+                                                         @Nullable @Named("pageToken")
+                                                         String pageToken) {
+        QueryResultCache.Page page =
+                ActivitySearch.search(text, effectivePageSize(pageSize), pageToken);
+        List<Activity> result = loadActivities(keysOf(page));
+        resolveOrganizers(result);
+        SeatAllocator.attachSeatsAvailable(result);
+        return CollectionResponse.<Activity>builder()
+                .setItems(result)
+                .setNextPageToken(page.getNextPageToken())
+                .build();
+    }
+
+    /**
+     * Returns the Activity keys of a cached page.
+     *
+     * @param page A page cached by a QueryResultCache.
+     * @return the keys, in the order of the page.
+     */
+    private static List<Key<Activity>> keysOf(QueryResultCache.Page page) {
+        List<Key<Activity>> keys = new ArrayList<>(page.getWebsafeKeys().size());
+        for (String websafeKey : page.getWebsafeKeys()) {
+            keys.add(Key.<Activity>create(websafeKey));
+        }
+        return keys;
+    }
+
+    /**
+     * Completes a page of a list endpoint, read either as Activities or as projected summaries,
+     * and attaches what the client sees but the query doesn't read.
+     *
+     * @param activities The Activities of the page, or null when read as summaries.
+     * @param summaries The summaries of the page, or null when read as Activities.
+     * @param summary Whether the client asked for View.SUMMARY.
+     * @param nextPageToken The token of the next page, or null.
+     * @return the page to return to the client.
+     */
+    private static ActivityCollectionResponse pageResponse(List<Activity> activities,
+                                                           List<ActivitySummary> summaries,
+                                                           boolean summary,
+                                                           String nextPageToken) {
+        if (summaries != null) {
+            SeatAllocator.attachSeatsAvailableToSummaries(summaries);
+            return new ActivityCollectionResponse(null, summaries, nextPageToken, null);
+        }
+        SeatAllocator.attachSeatsAvailable(activities);
+        if (summary) {
+            return new ActivityCollectionResponse(null, summarize(activities), nextPageToken, null);
+        }
+        // To avoid separate datastore gets for each Activity, fetch the Profiles in a batch.
+        resolveOrganizers(activities);
+        return new ActivityCollectionResponse(activities, null, nextPageToken, null);
+    }
+
+    /**
+     * Loads the Activities with a single batch get, keeping the order of the keys.
+     * Activities deleted in the meantime are skipped.
+     *
+     * @param keys The keys of the Activities.
+     * @return the Activities found.
+     */
+    private static List<Activity> loadActivities(List<Key<Activity>> keys) {
+        Map<Key<Activity>, Activity> activities = ofy().load().keys(keys);
+        List<Activity> result = new ArrayList<>(keys.size());
+        for (Key<Activity> key : keys) {
+            Activity activity = activities.get(key);
+            if (activity != null) {
+                result.add(activity);
+            }
+        }
         return result;
     }
-    
 
     /**
-     * Returns a list of Activities that the user created.
-     * In order to receive the websafeActivityKey via the JSON params, uses a POST method.
+     * Returns a page of Activities that the user created, ordered by name.
+     *
+     * The keys of each page are cached per organizer until the organizer creates or updates an
+     * Activity, so a cached page costs a memcache lookup plus a batch get.
+     * With View.SUMMARY, the summaries are read with a projection query when SUMMARY_PROJECTION
+     * is set, and otherwise from the full Activities.
      *
      * @param user An user who invokes this method, null when the user is not signed in.
-     * @return a list of Activities that the user created.
+     * @param pageSize The maximum number of Activities in the page.
+     * @param pageToken The nextPageToken returned by the previous page, null for the first page.
+     * @param view SUMMARY to return ActivitySummaries instead of Activities.
+     * @return a page of Activities that the user created.
      * @throws UnauthorizedException when the user is not signed in.
      */
     @ApiMethod(
             name = "getActivitiesCreated",
             path = "getActivitiesCreated",
-            httpMethod = HttpMethod.POST
+            httpMethod = HttpMethod.GET
     )
-    public List<Activity> getActivitiesCreated(final User user) throws UnauthorizedException {
+    public ActivityCollectionResponse getActivitiesCreated(final User user,
+                                                           @Nullable @Named("pageSize")
+                                                           final Integer pageSize,
+                                                           @Nullable @Named("pageToken")
+                                                           final String pageToken,
+                                                           @Nullable @Named("view")
+                                                           final View view)
+            throws UnauthorizedException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
         String userId = getUserId(user);
-        return ofy().load().type(Activity.class)
-                .ancestor(Key.create(Profile.class, userId))
-                .order("name").list();
+        Key<Profile> profileKey = Key.create(Profile.class, userId);
+        boolean summary = view == View.SUMMARY;
+        int limit = effectivePageSize(pageSize);
+        // The generation is per organizer, so the key must name the organizer too.
+        String queryKey = userId + "|" + limit + "|" + (pageToken == null ? "" : pageToken)
+                + (summary ? "|SUMMARY" : "");
+        // Read the generation first, so that a concurrent write invalidates what we cache below.
+        Long generation = CREATED_CACHE.generation(organizerGenerationKey(userId));
+        QueryResultCache.Page page = CREATED_CACHE.get(generation, queryKey);
+        List<Activity> activities = null;
+        List<ActivitySummary> summaries = null;
+        if (page == null) {
+            List<String> websafeKeys = new ArrayList<>(limit);
+            Cursor cursor;
+            List<Entity> projections = null;
+            if (summary && SUMMARY_PROJECTION) {
+                com.google.appengine.api.datastore.Query query =
+                        new com.google.appengine.api.datastore.Query(Key.getKind(Activity.class))
+                                .setAncestor(profileKey.getRaw())
+                                .addSort("name");
+                for (Map.Entry<String, Class<?>> property
+                        : ActivitySummary.PROJECTED_PROPERTIES.entrySet()) {
+                    query.addProjection(new PropertyProjection(property.getKey(), property.getValue()));
+                }
+                FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit).prefetchSize(limit);
+                if (pageToken != null) {
+                    fetchOptions.startCursor(Cursor.fromWebSafeString(pageToken));
+                }
+                QueryResultList<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                        .prepare(query).asQueryResultList(fetchOptions);
+                projections = entities;
+                summaries = summarizeProjections(entities,
+                        Collections.<String, Object>emptyMap());
+                for (ActivitySummary activitySummary : summaries) {
+                    websafeKeys.add(activitySummary.getWebsafeKey());
+                }
+                cursor = entities.size() == limit ? entities.getCursor() : null;
+            } else {
+                Query<Activity> query = ofy().load().type(Activity.class)
+                        .ancestor(profileKey).order("name").limit(limit);
+                if (pageToken != null) {
+                    query = query.startAt(Cursor.fromWebSafeString(pageToken));
+                }
+                QueryResultIterator<Key<Activity>> iterator = query.keys().iterator();
+                List<Key<Activity>> keys = new ArrayList<>(limit);
+                while (iterator.hasNext()) {
+                    Key<Activity> key = iterator.next();
+                    keys.add(key);
+                    websafeKeys.add(key.getString());
+                }
+                activities = loadActivities(keys);
+                cursor = keys.size() == limit ? iterator.getCursor() : null;
+            }
+            page = new QueryResultCache.Page(websafeKeys, projections,
+                    cursor == null ? null : cursor.toWebSafeString());
+            CREATED_CACHE.put(generation, queryKey, page);
+        } else if (page.getProjections() != null) {
+            summaries = summarizeProjections(page.getProjections(),
+                    Collections.<String, Object>emptyMap());
+        } else {
+            activities = loadActivities(keysOf(page));
+        }
+        return pageResponse(activities, summaries, summary, page.getNextPageToken());
     }
 
     /**
@@ -419,9 +1613,12 @@ public final class ActivityApi {
      *
      * @param user An user who invokes this method, null when the user is not signed in.
      * @param websafeActivityKey The String representation of the Activity Key.
+     * @param idempotencyKey A key chosen by the client for this registration, so that a retry
+     *                       gets the outcome of the first attempt without running it again.
      * @return Boolean true when success, otherwise false
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Activity with the given activityId.
+     * @throws BadRequestException when the idempotency key is empty or too long.
      */
     @ApiMethod(
             name = "registerForActivity",
@@ -430,39 +1627,257 @@ public final class ActivityApi {
     )
     public WrappedBoolean registerForActivity(final User user,
                                          @Named("websafeActivityKey")
-                                         final String websafeActivityKey)
-        throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+                                         final String websafeActivityKey,
+                                         @Nullable @Named("idempotencyKey")
+                                         final String idempotencyKey)
+        throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            BadRequestException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
         final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
-            @Override
-            public TxResult<Boolean> run() {
+        final Key<IdempotencyRecord> recordKey = idempotencyRecordKey(userId,
+                IdempotencyRecord.Operation.REGISTER, idempotencyKey);
+        IdempotencyRecord record = IdempotencyCache.get(recordKey);
+        if (record != null) {
+            return new WrappedBoolean(replay(record, websafeActivityKey).getResult());
+        }
+        final Key<Activity> activityKey = Key.create(websafeActivityKey);
+        // Seat sharding is fixed on creation, so a cached copy is enough to pick the path.
+        Activity cachedActivity = ActivityCache.get(activityKey);
+        if (cachedActivity == null) {
+            throw new NotFoundException("No Activity found with key: " + websafeActivityKey);
+        }
+        TxResult<Boolean> result;
+        if (cachedActivity.isSeatSharded()) {
+            result = registerOnSeatShards(user, userId, cachedActivity, recordKey);
+            SeatAllocator.invalidate(activityKey);
+        } else {
+            result = ofy().transact(new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    Activity activity = ofy().load().key(activityKey).now();
+                    // 404 when there is no Activity with the given activityId.
+                    if (activity == null) {
+                        return new TxResult<>(new NotFoundException(
+                                "No Activity found with key: " + websafeActivityKey));
+                    }
+                    // Registration happens here.
+                    Profile profile = prepareProfileForRegistration(user, userId);
+                    IdempotencyRecord record = IdempotencyCache.getInTransaction(recordKey);
+                    if (record != null) {
+                        return replay(record, websafeActivityKey);
+                    }
+                    Key<Registration> registrationKey = Registration.key(userId, activityKey);
+                    if (ofy().load().key(registrationKey).now() != null) {
+                        return recordOutcome(recordKey, websafeActivityKey, new TxResult<Boolean>(
+                                new ConflictException(ALREADY_REGISTERED_MESSAGE)));
+                    } else if (activity.getSeatsAvailable() <= 0) {
+                        return recordOutcome(recordKey, websafeActivityKey, new TxResult<Boolean>(
+                                new ConflictException("There are no seats available.")));
+                    } else {
+                        activity.bookSeats(1);
+                        profile.bumpAttendanceVersion();
+                        ofy().save().entities(new Registration(userId, activityKey), activity,
+                                profile).now();
+                        return recordOutcome(recordKey, websafeActivityKey,
+                                new TxResult<>(true));
+                    }
+                }
+            });
+            ActivityCache.invalidate(activityKey);
+        }
+        // NotFoundException is actually thrown here.
+        return new WrappedBoolean(result.getResult());
+    }
+
+    /**
+     * Registers to a sharded Activity by booking a seat on one of its shards.
+     *
+     * Each attempt is a cross-group transaction over the user's Profile and a single shard, so
+     * registrations landing on different shards don't contend with each other.
+     *
+     * @param user An user who registers.
+     * @param userId The App Engine userId of the user.
+     * @param activity A sharded Activity.
+     * @param recordKey The key of the IdempotencyRecord of the registration, or null.
+     * @return TxResult holding true on success, or a ConflictException.
+     */
+    private static TxResult<Boolean> registerOnSeatShards(final User user, final String userId,
+                                                          final Activity activity,
+                                                          final Key<IdempotencyRecord> recordKey) {
+        final Key<Activity> activityKey = activity.getKey();
+        final String websafeActivityKey = activityKey.getString();
+        final Key<Registration> registrationKey = Registration.key(userId, activityKey);
+        for (final Key<SeatShard> shardKey : SeatAllocator.shardsWithSeatsAvailable(activity)) {
+            TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    Profile profile = prepareProfileForRegistration(user, userId);
+                    IdempotencyRecord record = IdempotencyCache.getInTransaction(recordKey);
+                    if (record != null) {
+                        return replay(record, websafeActivityKey);
+                    }
+                    if (ofy().load().key(registrationKey).now() != null) {
+                        return recordOutcome(recordKey, websafeActivityKey, new TxResult<Boolean>(
+                                new ConflictException(ALREADY_REGISTERED_MESSAGE)));
+                    }
+                    SeatShard shard = ofy().load().key(shardKey).now();
+                    if (shard == null || shard.getSeatsAvailable() <= 0) {
+                        // Somebody else took the last seat of this shard, try the next one.
+                        return new TxResult<>((Boolean) null);
+                    }
+                    shard.bookSeats(1);
+                    profile.bumpAttendanceVersion();
+                    ofy().save().entities(new Registration(userId, activityKey), shard, profile)
+                            .now();
+                    return recordOutcome(recordKey, websafeActivityKey, new TxResult<>(true));
+                }
+            });
+            if (!result.isEmpty()) {
+                return result;
+            }
+        }
+        return recordOutcome(recordKey, websafeActivityKey, new TxResult<Boolean>(
+                new ConflictException("There are no seats available.")));
+    }
+
+    /**
+     * Registers to several Activities at once.
+     *
+     * The Activities are loaded with a single batch get, and the registrations are committed in
+     * cross-group transactions over the user's Profile and up to MAX_XG_ACTIVITIES Activities.
+     * Activities with sharded seats are registered one by one on their shards.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param registrationForm The websafe keys of the Activities to register for.
+     * @return the outcome for each requested Activity, in the order of the request.
+     * @throws UnauthorizedException when the user is not signed in.
+     */
+    @ApiMethod(
+            name = "registerForActivities",
+            path = "registrations",
+            httpMethod = HttpMethod.POST
+    )
+    public List<RegistrationResult> registerForActivities(final User user,
+                                                          RegistrationForm registrationForm)
+            throws UnauthorizedException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        final String userId = getUserId(user);
+        // Keeps the order of the request, with duplicates answered once.
+        Map<String, RegistrationResult.Status> statuses = new LinkedHashMap<>();
+        Map<String, Key<Activity>> requestedKeys = new HashMap<>();
+        for (String websafeActivityKey : registrationForm.getWebsafeActivityKeys()) {
+            statuses.put(websafeActivityKey, RegistrationResult.Status.NOT_FOUND);
+            try {
                 Key<Activity> activityKey = Key.create(websafeActivityKey);
-                Activity activity = ofy().load().key(activityKey).now();
-                // 404 when there is no Activity with the given activityId.
-                if (activity == null) {
-                    return new TxResult<>(new NotFoundException(
-                            "No Activity found with key: " + websafeActivityKey));
+                if (Key.getKind(Activity.class).equals(activityKey.getKind())) {
+                    requestedKeys.put(websafeActivityKey, activityKey);
                 }
-                // Registration happens here.
-                Profile profile = getProfileFromUser(user, userId);
-                if (profile.getActivityKeysToAttend().contains(websafeActivityKey)) {
-                    return new TxResult<>(new ConflictException("You have already registered for this activity"));
-                } else if (activity.getSeatsAvailable() <= 0) {
-                    return new TxResult<>(new ConflictException("There are no seats available."));
-                } else {
-                    profile.addToActivityKeysToAttend(websafeActivityKey);
-                    activity.bookSeats(1);
-                    ofy().save().entities(profile, activity).now();
-                    return new TxResult<>(true);
+            } catch (IllegalArgumentException e) {
+                LOG.info("Ignoring malformed Activity key: " + websafeActivityKey);
+            }
+        }
+        Map<Key<Activity>, Activity> activities = ofy().load().keys(requestedKeys.values());
+        List<Key<Activity>> unshardedKeys = new ArrayList<>();
+        for (Map.Entry<String, Key<Activity>> entry : requestedKeys.entrySet()) {
+            Activity activity = activities.get(entry.getValue());
+            if (activity == null) {
+                continue;
+            } else if (activity.isSeatSharded()) {
+                statuses.put(entry.getKey(), registerOnSeatShardsForBulk(user, userId, activity));
+                SeatAllocator.invalidate(entry.getValue());
+            } else if (!unshardedKeys.contains(entry.getValue())) {
+                unshardedKeys.add(entry.getValue());
+            }
+        }
+        for (int from = 0; from < unshardedKeys.size(); from += MAX_XG_ACTIVITIES) {
+            final List<Key<Activity>> chunk = unshardedKeys.subList(from,
+                    Math.min(from + MAX_XG_ACTIVITIES, unshardedKeys.size()));
+            Map<Key<Activity>, RegistrationResult.Status> chunkStatuses = ofy().transact(
+                    new Work<Map<Key<Activity>, RegistrationResult.Status>>() {
+                @Override
+                public Map<Key<Activity>, RegistrationResult.Status> run() {
+                    Profile profile = prepareProfileForRegistration(user, userId);
+                    List<Key<Registration>> registrationKeys = new ArrayList<>(chunk.size());
+                    for (Key<Activity> activityKey : chunk) {
+                        registrationKeys.add(Registration.key(userId, activityKey));
+                    }
+                    Map<Key<Registration>, Registration> registrations =
+                            ofy().load().keys(registrationKeys);
+                    Map<Key<Activity>, Activity> activities = ofy().load().keys(chunk);
+                    Map<Key<Activity>, RegistrationResult.Status> chunkStatuses = new HashMap<>();
+                    List<Object> toSave = new ArrayList<>();
+                    for (Key<Activity> activityKey : chunk) {
+                        Activity activity = activities.get(activityKey);
+                        if (activity == null) {
+                            chunkStatuses.put(activityKey, RegistrationResult.Status.NOT_FOUND);
+                        } else if (registrations.containsKey(Registration.key(userId, activityKey))) {
+                            chunkStatuses.put(activityKey,
+                                    RegistrationResult.Status.ALREADY_REGISTERED);
+                        } else if (activity.getSeatsAvailable() <= 0) {
+                            chunkStatuses.put(activityKey, RegistrationResult.Status.FULL);
+                        } else {
+                            activity.bookSeats(1);
+                            toSave.add(activity);
+                            toSave.add(new Registration(userId, activityKey));
+                            chunkStatuses.put(activityKey, RegistrationResult.Status.REGISTERED);
+                        }
+                    }
+                    if (!toSave.isEmpty()) {
+                        profile.bumpAttendanceVersion();
+                        toSave.add(profile);
+                    }
+                    ofy().save().entities(toSave).now();
+                    return chunkStatuses;
                 }
+            });
+            for (Key<Activity> activityKey : chunk) {
+                ActivityCache.invalidate(activityKey);
             }
-        });
-        // NotFoundException is actually thrown here.
-        return new WrappedBoolean(result.getResult());
+            for (Map.Entry<String, Key<Activity>> entry : requestedKeys.entrySet()) {
+                RegistrationResult.Status status = chunkStatuses.get(entry.getValue());
+                if (status != null) {
+                    statuses.put(entry.getKey(), status);
+                }
+            }
+        }
+        List<RegistrationResult> results = new ArrayList<>(statuses.size());
+        for (Map.Entry<String, RegistrationResult.Status> entry : statuses.entrySet()) {
+            results.add(new RegistrationResult(entry.getKey(), entry.getValue()));
+        }
+        return results;
+    }
+
+    /**
+     * Registers to a sharded Activity as part of a bulk registration.
+     *
+     * @param user An user who registers.
+     * @param userId The App Engine userId of the user.
+     * @param activity A sharded Activity.
+     * @return the outcome of the registration.
+     */
+    private static RegistrationResult.Status registerOnSeatShardsForBulk(
+            User user, String userId, Activity activity) {
+        if (ofy().load().key(Registration.key(userId, activity.getKey())).now() != null) {
+            return RegistrationResult.Status.ALREADY_REGISTERED;
+        }
+        try {
+            registerOnSeatShards(user, userId, activity, null).getResult();
+            return RegistrationResult.Status.REGISTERED;
+        } catch (ConflictException e) {
+            // This user registered concurrently, or in the legacy Profile field the pre-check
+            // doesn't see; otherwise somebody else took the last seat.
+            return ALREADY_REGISTERED_MESSAGE.equals(e.getMessage())
+                    ? RegistrationResult.Status.ALREADY_REGISTERED
+                    : RegistrationResult.Status.FULL;
+        } catch (NotFoundException | ForbiddenException e) {
+            return RegistrationResult.Status.NOT_FOUND;
+        }
     }
 
     /**
@@ -471,9 +1886,12 @@ public final class ActivityApi {
      * @param user An user who invokes this method, null when the user is not signed in.
      * @param websafeActivityKey The String representation of the Activity Key to unregister
      *                             from.
+     * @param idempotencyKey A key chosen by the client for this unregistration, so that a retry
+     *                       gets the outcome of the first attempt without running it again.
      * @return Boolean true when success, otherwise false.
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Activity with the given activityId.
+     * @throws BadRequestException when the idempotency key is empty or too long.
      */
     @ApiMethod(
             name = "unregisterFromActivity",
@@ -482,36 +1900,110 @@ public final class ActivityApi {
     )
     public WrappedBoolean unregisterFromActivity(final User user,
                                             @Named("websafeActivityKey")
-                                            final String websafeActivityKey)
-            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+                                            final String websafeActivityKey,
+                                            @Nullable @Named("idempotencyKey")
+                                            final String idempotencyKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            BadRequestException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
         final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
-            @Override
-            public TxResult<Boolean> run() {
-                Key<Activity> activityKey = Key.create(websafeActivityKey);
-                Activity activity = ofy().load().key(activityKey).now();
-                // 404 when there is no Activity with the given activityId.
-                if (activity == null) {
-                    return new TxResult<>(new NotFoundException(
-                            "No Activity found with key: " + websafeActivityKey));
-                }
-                // Un-registering from the Activity.
-                Profile profile = getProfileFromUser(user, userId);
-                if (profile.getActivityKeysToAttend().contains(websafeActivityKey)) {
-                    profile.unregisterFromActivity(websafeActivityKey);
-                    activity.giveBackSeats(1);
-                    ofy().save().entities(profile, activity).now();
-                    return new TxResult<>(true);
-                } else {
-                    return new TxResult<>(false);
+        final Key<IdempotencyRecord> recordKey = idempotencyRecordKey(userId,
+                IdempotencyRecord.Operation.UNREGISTER, idempotencyKey);
+        IdempotencyRecord record = IdempotencyCache.get(recordKey);
+        if (record != null) {
+            return new WrappedBoolean(replay(record, websafeActivityKey).getResult());
+        }
+        final Key<Activity> activityKey = Key.create(websafeActivityKey);
+        Activity cachedActivity = ActivityCache.get(activityKey);
+        if (cachedActivity == null) {
+            throw new NotFoundException("No Activity found with key: " + websafeActivityKey);
+        }
+        TxResult<Boolean> result;
+        if (cachedActivity.isSeatSharded()) {
+            result = unregisterFromSeatShards(user, userId, cachedActivity, recordKey);
+            SeatAllocator.invalidate(activityKey);
+        } else {
+            result = ofy().transact(new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    Activity activity = ofy().load().key(activityKey).now();
+                    // 404 when there is no Activity with the given activityId.
+                    if (activity == null) {
+                        return new TxResult<>(new NotFoundException(
+                                "No Activity found with key: " + websafeActivityKey));
+                    }
+                    // Un-registering from the Activity.
+                    Profile profile = prepareProfileForRegistration(user, userId);
+                    IdempotencyRecord record = IdempotencyCache.getInTransaction(recordKey);
+                    if (record != null) {
+                        return replay(record, websafeActivityKey);
+                    }
+                    Key<Registration> registrationKey = Registration.key(userId, activityKey);
+                    if (ofy().load().key(registrationKey).now() != null) {
+                        ofy().delete().key(registrationKey).now();
+                        activity.giveBackSeats(1);
+                        profile.bumpAttendanceVersion();
+                        ofy().save().entities(activity, profile).now();
+                        return recordOutcome(recordKey, websafeActivityKey,
+                                new TxResult<>(true));
+                    } else {
+                        return recordOutcome(recordKey, websafeActivityKey,
+                                new TxResult<>(false));
+                    }
                 }
-            }
-        });
+            });
+            ActivityCache.invalidate(activityKey);
+        }
         // NotFoundException is actually thrown here.
         return new WrappedBoolean(result.getResult());
     }
+
+    /**
+     * Unregisters from a sharded Activity by giving back a seat to one of its shards.
+     *
+     * @param user An user who unregisters.
+     * @param userId The App Engine userId of the user.
+     * @param activity A sharded Activity.
+     * @param recordKey The key of the IdempotencyRecord of the unregistration, or null.
+     * @return TxResult holding true on success, false when the user hasn't registered.
+     */
+    private static TxResult<Boolean> unregisterFromSeatShards(final User user, final String userId,
+                                                              final Activity activity,
+                                                              final Key<IdempotencyRecord> recordKey) {
+        final String websafeActivityKey = activity.getWebsafeKey();
+        final Key<Registration> registrationKey = Registration.key(userId, activity.getKey());
+        for (final Key<SeatShard> shardKey : SeatAllocator.shardsWithSeatsAllocated(activity)) {
+            TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    Profile profile = prepareProfileForRegistration(user, userId);
+                    IdempotencyRecord record = IdempotencyCache.getInTransaction(recordKey);
+                    if (record != null) {
+                        return replay(record, websafeActivityKey);
+                    }
+                    if (ofy().load().key(registrationKey).now() == null) {
+                        return recordOutcome(recordKey, websafeActivityKey,
+                                new TxResult<>(false));
+                    }
+                    SeatShard shard = ofy().load().key(shardKey).now();
+                    if (shard == null || shard.getSeatsAllocated() <= 0) {
+                        // Somebody else gave back the last seat of this shard, try the next one.
+                        return new TxResult<>((Boolean) null);
+                    }
+                    ofy().delete().key(registrationKey).now();
+                    shard.giveBackSeats(1);
+                    profile.bumpAttendanceVersion();
+                    ofy().save().entities(shard, profile).now();
+                    return recordOutcome(recordKey, websafeActivityKey, new TxResult<>(true));
+                }
+            });
+            if (!result.isEmpty()) {
+                return result;
+            }
+        }
+        return recordOutcome(recordKey, websafeActivityKey, new TxResult<>(false));
+    }
 }
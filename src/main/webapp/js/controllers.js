@@ -250,7 +250,8 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
         {enumValue: 'LOCATION', displayName: 'Location'},
         {enumValue: 'TOPIC', displayName: 'Topic'},
         {enumValue: 'MONTH', displayName: 'Start month'},
-        {enumValue: 'MAX_ATTENDEES', displayName: 'Max Attendees'}
+        {enumValue: 'MAX_ATTENDEES', displayName: 'Max Attendees'},
+        {enumValue: 'START_DATE', displayName: 'Start date (yyyy-mm-dd)'}
     ]
 
     /**
@@ -388,6 +389,45 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
         }
     };
 
+    /**
+     * The largest pageSize the list methods accept.
+     */
+    var MAX_PAGE_SIZE = 100;
+
+    /**
+     * Invokes a paged list method and follows nextPageToken until the last page, so that the
+     * client-side pagination gets all the activities as before the list methods were paged.
+     *
+     * @param method The gapi client method, e.g. gapi.client.activity.queryActivities.
+     * @param request The request of the method, without pageSize and pageToken.
+     * @param callback Called with the response of the last page, or of the page which failed,
+     *                 and the items of all the pages read.
+     */
+    var fetchAllPages = function (method, request, callback) {
+        var items = [];
+        var fetchPage = function (pageToken) {
+            var pageRequest = angular.extend({}, request, {pageSize: MAX_PAGE_SIZE});
+            if (pageToken) {
+                pageRequest.pageToken = pageToken;
+            }
+            method(pageRequest).execute(function (resp) {
+                if (resp.error) {
+                    callback(resp, items);
+                    return;
+                }
+                angular.forEach(resp.items, function (item) {
+                    items.push(item);
+                });
+                if (resp.nextPageToken) {
+                    fetchPage(resp.nextPageToken);
+                } else {
+                    callback(resp, items);
+                }
+            });
+        };
+        fetchPage(null);
+    };
+
     /**
      * Query the activities depending on the tab currently selected.
      *
@@ -421,8 +461,8 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
             }
         }
         $scope.loading = true;
-        gapi.client.activity.queryActivities(sendFilters).
-            execute(function (resp) {
+        fetchAllPages(gapi.client.activity.queryActivities, sendFilters,
+            function (resp, activities) {
                 $scope.$apply(function () {
                     $scope.loading = false;
                     if (resp.error) {
@@ -438,10 +478,7 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.activities = [];
-                        angular.forEach(resp.items, function (activity) {
-                            $scope.activities.push(activity);
-                        });
+                        $scope.activities = activities;
                     }
                     $scope.submitted = true;
                 });
@@ -453,8 +490,8 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
      */
     $scope.getActivitiesCreated = function () {
         $scope.loading = true;
-        gapi.client.activity.getActivitiesCreated().
-            execute(function (resp) {
+        fetchAllPages(gapi.client.activity.getActivitiesCreated, {},
+            function (resp, activities) {
                 $scope.$apply(function () {
                     $scope.loading = false;
                     if (resp.error) {
@@ -475,10 +512,7 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.activities = [];
-                        angular.forEach(resp.items, function (activity) {
-                            $scope.activities.push(activity);
-                        });
+                        $scope.activities = activities;
                     }
                     $scope.submitted = true;
                 });
@@ -491,8 +525,8 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
      */
     $scope.getActivitiesAttend = function () {
         $scope.loading = true;
-        gapi.client.activity.getActivitiesToAttend().
-            execute(function (resp) {
+        fetchAllPages(gapi.client.activity.getActivitiesToAttend, {},
+            function (resp, activities) {
                 $scope.$apply(function () {
                     if (resp.error) {
                         // The request has failed.
@@ -507,7 +541,7 @@ activityApp.controllers.controller('ShowActivityCtrl', function ($scope, $log, o
                         }
                     } else {
                         // The request has succeeded.
-                        $scope.activities = resp.result.items;
+                        $scope.activities = activities;
                         $scope.loading = false;
                         $scope.messages = 'Query succeeded : activities you will attend (or you have attended)';
                         $scope.alertStatus = 'success';
@@ -561,21 +595,18 @@ activityApp.controllers.controller('ActivityDetailCtrl', function ($scope, $log,
 
         $scope.loading = true;
         // If the user is attending the activity, updates the status message and available function.
-        gapi.client.activity.getProfile().execute(function (resp) {
+        gapi.client.activity.isRegisteredForActivity({
+            websafeActivityKey: $routeParams.websafeActivityKey
+        }).execute(function (resp) {
             $scope.$apply(function () {
                 $scope.loading = false;
                 if (resp.error) {
-                    // Failed to get a user profile.
-                } else {
-                    var profile = resp.result;
-                    for (var i = 0; i < profile.activityKeysToAttend.length; i++) {
-                        if ($routeParams.websafeActivityKey == profile.activityKeysToAttend[i]) {
-                            // The user is attending the activity.
-                            $scope.alertStatus = 'info';
-                            $scope.messages = 'You are attending this activity';
-                            $scope.isUserAttending = true;
-                        }
-                    }
+                    // Failed to get the registration status.
+                } else if (resp.result) {
+                    // The user is attending the activity.
+                    $scope.alertStatus = 'info';
+                    $scope.messages = 'You are attending this activity';
+                    $scope.isUserAttending = true;
                 }
             });
         });
@@ -0,0 +1,384 @@
+package com.appspot.yourlittleone.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.appspot.yourlittleone.Constants;
+import com.appspot.yourlittleone.domain.Activity;
+import com.appspot.yourlittleone.domain.ActivitySummary;
+import com.appspot.yourlittleone.domain.Profile;
+import com.appspot.yourlittleone.form.ActivityForm;
+import com.appspot.yourlittleone.form.ActivityImportForm;
+import com.appspot.yourlittleone.form.ActivityQueryForm;
+import com.appspot.yourlittleone.form.RegistrationForm;
+import com.appspot.yourlittleone.service.ConfirmationMailer;
+import com.appspot.yourlittleone.servlet.MigrateRegistrationsServlet;
+import com.appspot.yourlittleone.spi.ActivityApi.ImportResult;
+import com.appspot.yourlittleone.spi.ActivityApi.RegistrationResult;
+import com.appspot.yourlittleone.spi.ActivityApi.View;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class ActivityApiTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"),
+            new LocalSearchServiceTestConfig());
+
+    private final ActivityApi api = new ActivityApi();
+
+    /**
+     * A request without headers.
+     */
+    private final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+            });
+
+    private ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+    private GetCounter gets;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        helper.setUp();
+        delegate = ApiProxy.getDelegate();
+        gets = new GetCounter(delegate);
+        ApiProxy.setDelegate(gets);
+    }
+
+    @After
+    public void tearDown() {
+        ObjectifyFilter.complete();
+        ApiProxy.setDelegate(delegate);
+        helper.tearDown();
+    }
+
+    @Test
+    public void summariesToAttendLoadOrganizersInOneBatch() throws Exception {
+        assertEquals(attendSummaryGets("few", 2), attendSummaryGets("many", 10));
+    }
+
+    @Test
+    public void createdSummariesIncludeActivitiesNotBackfilled() throws Exception {
+        User organizer = user("organizer");
+        api.createActivity(organizer, activityForm("Backfilled"), null);
+        Activity legacy = api.createActivity(organizer, activityForm("Legacy"), null);
+        // As written before startDate and seatShards were indexed.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(legacy.getKey().getRaw());
+        entity.setUnindexedProperty("startDate", entity.getProperty("startDate"));
+        entity.setUnindexedProperty("seatShards", entity.getProperty("seatShards"));
+        datastore.put(entity);
+        ObjectifyFilter.complete();
+        List<String> names = new ArrayList<>();
+        for (ActivitySummary summary
+                : api.getActivitiesCreated(organizer, null, null, View.SUMMARY).getSummaries()) {
+            names.add(summary.getName());
+        }
+        assertEquals(Arrays.asList("Backfilled", "Legacy"), names);
+    }
+
+    @Test
+    public void importReportsInvalidRowsAndCreatesTheOthers() throws Exception {
+        ActivityForm unnamed = activityForm(null);
+        ActivityForm latitudeOnly = activityForm("Latitude only");
+        set(latitudeOnly, "latitude", 37.4);
+        List<ImportResult> results = api.importActivities(user("organizer"), importForm(
+                Arrays.asList(activityForm("Valid"), unnamed, null, latitudeOnly)));
+        assertEquals(4, results.size());
+        assertNotNull(results.get(0).getWebsafeActivityKey());
+        assertNull(results.get(0).getError());
+        assertEquals("The name is required", results.get(1).getError());
+        assertEquals("The row is empty", results.get(2).getError());
+        assertEquals("Latitude and longitude must be set together.", results.get(3).getError());
+        assertNull(results.get(3).getWebsafeActivityKey());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void importIsLimitedInRows() throws Exception {
+        api.importActivities(user("organizer"),
+                importForm(Collections.nCopies(1001, activityForm("Row"))));
+    }
+
+    @Test
+    public void importSummaryIsBounded() throws Exception {
+        ActivityForm activityForm = activityForm("Row");
+        char[] location = new char[1000];
+        Arrays.fill(location, 'x');
+        set(activityForm, "location", new String(location));
+        List<ImportResult> results = api.importActivities(user("organizer"),
+                importForm(Collections.nCopies(100, activityForm)));
+        assertEquals(100, results.size());
+        List<TaskStateInfo> tasks = LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(ConfirmationMailer.QUEUE_NAME).getTaskInfo();
+        assertEquals(1, tasks.size());
+        String body = tasks.get(0).getBody();
+        assertTrue(body.length() < 2 * 32 * 1024);
+        assertTrue(body.contains("more."));
+    }
+
+    @Test
+    public void bulkRegistrationToShardsReportsLegacyRegistrations() throws Exception {
+        User organizer = user("organizer");
+        ActivityForm sharded = activityForm("Sharded");
+        set(sharded, "seatShards", 2);
+        String websafeKey = api.createActivity(organizer, sharded, null).getWebsafeKey();
+        User attendee = user("attendee");
+        registerInline(attendee, organizer, websafeKey);
+        RegistrationForm registrationForm = newForm(RegistrationForm.class);
+        set(registrationForm, "websafeActivityKeys", Arrays.asList(websafeKey));
+        List<RegistrationResult> results = api.registerForActivities(attendee, registrationForm);
+        assertEquals(RegistrationResult.Status.ALREADY_REGISTERED, results.get(0).getStatus());
+    }
+
+    @Test
+    public void attendeesIncludeMigratedLegacyRegistrations() throws Exception {
+        User organizer = user("organizer");
+        String websafeKey = api.createActivity(organizer, activityForm("Legacy"), null)
+                .getWebsafeKey();
+        User attendee = user("attendee");
+        registerInline(attendee, organizer, websafeKey);
+        StringWriter output = new StringWriter();
+        final PrintWriter writer = new PrintWriter(output);
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getWriter".equals(method.getName()) ? writer : null;
+                    }
+                });
+        Method doGet = MigrateRegistrationsServlet.class.getDeclaredMethod("doGet",
+                HttpServletRequest.class, HttpServletResponse.class);
+        doGet.setAccessible(true);
+        doGet.invoke(new MigrateRegistrationsServlet(), request, response);
+        writer.flush();
+        assertTrue(output.toString(), output.toString().contains("migrated 1 registrations"));
+        ObjectifyFilter.complete();
+        List<String> attendees = new ArrayList<>();
+        for (Profile profile : api.getAttendees(organizer, websafeKey, null, null).getItems()) {
+            attendees.add(profile.getMainEmail());
+        }
+        assertEquals(Arrays.asList(attendee.getEmail()), attendees);
+    }
+
+    @Test
+    public void rejectedUpdateKeepsTheCaches() throws Exception {
+        String websafeKey = api.createActivity(user("organizer"), activityForm("Mine"), null)
+                .getWebsafeKey();
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        Object generation = memcache.get(Constants.MEMCACHE_ACTIVITY_GENERATION_KEY);
+        try {
+            api.updateActivity(user("intruder"), activityForm("Theirs"), websafeKey);
+            fail("Only the organizer can update the Activity");
+        } catch (ForbiddenException e) {
+            assertEquals(generation, memcache.get(Constants.MEMCACHE_ACTIVITY_GENERATION_KEY));
+        }
+    }
+
+    @Test
+    public void queryIgnoresWhitespaceAroundIntegers() throws Exception {
+        api.createActivity(user("organizer"), activityForm("Ten seats"), null);
+        for (View view : Arrays.asList(View.FULL, View.SUMMARY)) {
+            ActivityApi.ActivityCollectionResponse page = api.queryActivities(
+                    maxAttendeesQuery(" 10 "), view);
+            assertEquals(1, view == View.SUMMARY
+                    ? page.getSummaries().size() : page.getItems().size());
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void queryRejectsIntegersThatAreNot() throws Exception {
+        api.queryActivities(maxAttendeesQuery("ten"), null);
+    }
+
+    private static ActivityQueryForm maxAttendeesQuery(String value) {
+        return new ActivityQueryForm().filter(new ActivityQueryForm.Filter(
+                ActivityQueryForm.Field.MAX_ATTENDEES, ActivityQueryForm.Operator.EQ, value));
+    }
+
+    /**
+     * Registers the attendee for the Activity as before Registration entities, inline on the
+     * attendee's Profile, which is created by registering for another Activity of the organizer.
+     */
+    private void registerInline(User attendee, User organizer, String websafeKey)
+            throws Exception {
+        api.registerForActivity(attendee,
+                api.createActivity(organizer, activityForm("Other"), null).getWebsafeKey(), null);
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (Entity profile : datastore.prepare(new Query("Profile")).asIterable()) {
+            if (attendee.getEmail().equals(profile.getProperty("mainEmail"))) {
+                profile.setProperty("activityKeysToAttend", Arrays.asList(websafeKey));
+                datastore.put(profile);
+            }
+        }
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        ObjectifyFilter.complete();
+    }
+
+    /**
+     * Registers a new user for Activities of as many organizers, and returns the number of
+     * datastore and memcache gets of the SUMMARY page listing them.
+     */
+    private int attendSummaryGets(String name, int activities) throws Exception {
+        User attendee = user(name);
+        for (int i = 0; i < activities; i++) {
+            String websafeKey = api.createActivity(user(name + i), activityForm(name + i), null)
+                    .getWebsafeKey();
+            api.registerForActivity(attendee, websafeKey, null);
+        }
+        // A new request, with an empty session cache.
+        ObjectifyFilter.complete();
+        gets.count.set(0);
+        ActivityApi.ActivityCollectionResponse page =
+                api.getActivitiesToAttend(attendee, null, null, null, View.SUMMARY, request);
+        assertEquals(activities, page.getSummaries().size());
+        return gets.count.get();
+    }
+
+    static User user(String name) {
+        return new User(name + "@example.com", "example.com", name);
+    }
+
+    /**
+     * Returns an ActivityForm as the Endpoints deserializer would build it from the client's
+     * JSON. The form has no setters, so the fields are set reflectively.
+     */
+    static ActivityForm activityForm(String name) throws ReflectiveOperationException {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2016, Calendar.MAY, 14, 10, 0, 0);
+        Date startDate = calendar.getTime();
+        calendar.add(Calendar.HOUR_OF_DAY, 2);
+        ActivityForm activityForm = new ActivityForm();
+        set(activityForm, "name", name);
+        set(activityForm, "topics", Arrays.asList("Music"));
+        set(activityForm, "location", "Mountain View");
+        set(activityForm, "startDate", startDate);
+        set(activityForm, "endDate", calendar.getTime());
+        set(activityForm, "maxAttendees", 10);
+        return activityForm;
+    }
+
+    private static ActivityImportForm importForm(List<ActivityForm> activityForms)
+            throws ReflectiveOperationException {
+        ActivityImportForm activityImportForm = newForm(ActivityImportForm.class);
+        set(activityImportForm, "activities", activityForms);
+        return activityImportForm;
+    }
+
+    /**
+     * Instantiates a form through its private constructor, as the Endpoints deserializer does.
+     */
+    private static <T> T newForm(Class<T> formClass) throws ReflectiveOperationException {
+        java.lang.reflect.Constructor<T> constructor = formClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private static void set(Object target, String fieldName, Object value)
+            throws ReflectiveOperationException {
+        java.lang.reflect.Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * Counts the datastore and memcache gets, whichever of them serves a key load.
+     */
+    private static final class GetCounter implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+        private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        GetCounter(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+            this.delegate = delegate;
+        }
+
+        private void count(String packageName, String methodName) {
+            if ("Get".equals(methodName)
+                    && ("datastore_v3".equals(packageName) || "memcache".equals(packageName))) {
+                count.incrementAndGet();
+            }
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                                   String methodName, byte[] request) {
+            count(packageName, methodName);
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                                            String methodName, byte[] request,
+                                            ApiProxy.ApiConfig apiConfig) {
+            count(packageName, methodName);
+            return delegate.makeAsyncCall(environment, packageName, methodName, request,
+                    apiConfig);
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord logRecord) {
+            delegate.log(environment, logRecord);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+}